@@ -0,0 +1,126 @@
+package fr.asenka.detektor;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import fr.asenka.detektor.util.FeatureMatrix;
+import fr.asenka.detektor.util.FeatureStorage;
+import fr.asenka.detektor.util.Matrix;
+
+/**
+ * Training and prediction steps of the one hidden layer network on random MNIST-shaped data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NetworkBenchmark {
+
+	private static final int FEATURES = 28 * 28;
+
+	private static final int CLASSES = 10;
+
+	@Param({ "3000", "20000", "60000" })
+	public int rows;
+
+	@Param({ "25" })
+	public int hidden;
+
+	@Param({ "100" })
+	public int batchSize;
+
+	@Param({ "DOUBLE", "FLOAT", "UINT8", "SPARSE", "OFF_HEAP" })
+	public FeatureStorage storage;
+
+	/**
+	 * Share of the features that are 0 (about 0.8 for the MNIST pixels)
+	 */
+	@Param({ "0", "0.8" })
+	public double sparsity;
+
+	private FeatureMatrix X;
+
+	private OneLayerNeuralNetwork network;
+
+	private InferenceEngine engine;
+
+	private DataParallelTrainer trainer;
+
+	private double[] sample;
+
+	private Random random;
+
+	@Setup
+	public void setUp() {
+
+		Random random = new Random(42);
+		Matrix y = new Matrix(rows, 1);
+
+		for (int i = 0; i < rows; i++)
+			y.set(i, 0, random.nextInt(CLASSES));
+
+		X = storage.convert(Matrix.random(rows, FEATURES, 0d, 1d).applyInPlace(x -> x < sparsity ? 0d : x));
+		network = new OneLayerNeuralNetwork(FEATURES, CLASSES, hidden, NeuralNetwork.DEFAULT_ALPHA, X, y);
+		network.feedForward(X);
+		engine = network.compile();
+		trainer = new DataParallelTrainer(network);
+		sample = new double[FEATURES];
+		X.readRow(0, 0, FEATURES, sample, 0);
+		this.random = random;
+	}
+
+	@Benchmark
+	public Matrix feedForward() {
+		network.feedForward(X);
+		return network.H;
+	}
+
+	@Benchmark
+	public Matrix backPropagation() {
+		network.backPropagation(network.Y);
+		return network.gradients;
+	}
+
+	@Benchmark
+	public Matrix fullBatchIteration() {
+		network.feedForward(X);
+		network.backPropagation(network.Y);
+		network.gradientDescent();
+		return network.parameters;
+	}
+
+	@Benchmark
+	public double dataParallelIteration() {
+		return trainer.step(X, network.Y, false);
+	}
+
+	@Benchmark
+	public double miniBatchEpoch() {
+		// Neither computes nor prints the cost, unlike trainMiniBatch
+		return network.epoch(random, batchSize, false);
+	}
+
+	@Benchmark
+	public Matrix predict() {
+		return OneLayerNeuralNetwork.predict(X, network.getWeights());
+	}
+
+	@Benchmark
+	public Matrix predictCompiled() {
+		return engine.predict(X);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int classify() {
+		return engine.classify(sample);
+	}
+}
@@ -0,0 +1,104 @@
+package fr.asenka.detektor.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Matrix kernels on the shapes of the MNIST network: m examples of 784 pixels + bias, h hidden units.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MatrixBenchmark {
+
+	@Param({ "3000", "20000", "60000" })
+	public int rows;
+
+	@Param({ "785" })
+	public int columns;
+
+	@Param({ "25" })
+	public int hidden;
+
+	private Matrix X; // m x (n + 1)
+
+	private Matrix W; // h x (n + 1)
+
+	private Matrix D; // m x h
+
+	private Matrix Z; // m x h
+
+	private Matrix G; // h x (n + 1)
+
+	@Setup
+	public void setUp() {
+		X = Matrix.random(rows, columns, 0d, 1d);
+		W = Matrix.random(hidden, columns, -0.5d, 0.5d);
+		D = Matrix.random(rows, hidden, -1d, 1d);
+		Z = new Matrix(rows, hidden);
+		G = new Matrix(hidden, columns);
+	}
+
+	@Benchmark
+	public Matrix multiply() {
+		return X.multiply(W.transpose());
+	}
+
+	@Benchmark
+	public Matrix multiplyTransposed() {
+		return Matrix.multiplyTransposed(X, W, Z);
+	}
+
+	@Benchmark
+	public Matrix transposeMultiply() {
+		return Matrix.transposeMultiply(D, X, G);
+	}
+
+	@Benchmark
+	public Matrix add() {
+		return X.add(X);
+	}
+
+	@Benchmark
+	public Matrix hadamard() {
+		return Matrix.hadamard(D, D, Z);
+	}
+
+	@Benchmark
+	public Matrix applyOnEach() {
+		return D.applyOnEach(Activation.SIGMOID.function());
+	}
+
+	@Benchmark
+	public Matrix sigmoidInPlace() {
+		return Activation.SIGMOID.applyInPlace(Z);
+	}
+
+	@Benchmark
+	public Matrix concatH() {
+		return Matrix.ones(rows, 1).concatH(X);
+	}
+
+	@Benchmark
+	public double sumAll() {
+		return Matrix.sumAll(X);
+	}
+
+	@Benchmark
+	public double max() {
+		return X.max();
+	}
+
+	@Benchmark
+	public Matrix indexMaxByRow() {
+		return D.indexMaxByRow();
+	}
+}
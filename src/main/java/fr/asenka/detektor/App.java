@@ -7,26 +7,27 @@ import javax.swing.JFrame;
 import org.math.plot.Plot2DPanel;
 
 import fr.asenka.detektor.util.DataSet;
+import fr.asenka.detektor.util.Examples;
 import fr.asenka.detektor.util.Matrix;
 import fr.asenka.detektor.util.MnistDataSet;
+import fr.asenka.detektor.util.Optimizer;
 
 public class App {
 
 	public static void main(String[] args) throws IOException {
 
 		DataSet ds = new MnistDataSet();
-		Matrix X = ds.getImages().rows(0, 2999);
-		Matrix y = ds.getLabels().rows(0, 2999);
+		Examples training = ds.examples(0, 2999);
 		
-		System.out.println("Training model with alpha=2.5...");
-		OneLayerNeuralNetwork nn1 = new OneLayerNeuralNetwork(ds.getImageSize(), 10, 20, 2.5d, X, y);
+		System.out.println("Training model with Nesterov momentum, alpha=0.3...");
+		OneLayerNeuralNetwork nn1 = new OneLayerNeuralNetwork(ds.getImageSize(), 10, 20, 0.3d, training.getFeatures(), training.getLabels());
+		nn1.setOptimizer(Optimizer.nesterov(0.9d));
 		
-		plotCostHistory(nn1.train(50));
+		plotCostHistory(nn1.trainMiniBatch(5, 50));
         
-        Matrix testX = ds.getImages().rows(40000, 59999);
-        Matrix testy = ds.getLabels().rows(40000, 59999);
-		Matrix p = OneLayerNeuralNetwork.predict(testX, nn1.getWeights());
-		System.out.println("Correct predictions : " + OneLayerNeuralNetwork.countCorrectPredictions(p, testy) + "/" + p.rows());
+        Examples test = ds.examples(40000, 59999);
+		Matrix p = OneLayerNeuralNetwork.predict(test.getFeatures(), nn1.getWeights());
+		System.out.println("Correct predictions : " + OneLayerNeuralNetwork.countCorrectPredictions(p, test.getLabels()) + "/" + p.rows());
 		
 	}
 	
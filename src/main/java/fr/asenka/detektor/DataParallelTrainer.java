@@ -0,0 +1,198 @@
+package fr.asenka.detektor;
+
+import java.util.Random;
+
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+
+import fr.asenka.detektor.util.BatchIterator;
+import fr.asenka.detektor.util.ComputePool;
+import fr.asenka.detektor.util.Examples;
+import fr.asenka.detektor.util.FeatureMatrix;
+import fr.asenka.detektor.util.Matrix;
+
+/**
+ * Trains a network by splitting each batch of examples in consecutive shards of rows, one per
+ * worker.
+ *
+ * The workers share the parameters of the network but have their own buffers and gradients; they
+ * run the forward and backward passes of their shard in parallel in the {@link ComputePool}. Their
+ * gradients, weighted by the size of their shard, are then summed two by two (a tree reduction,
+ * each level in parallel) into the gradients of the network before its descent step, which gives
+ * the same update as a single thread on the whole batch.
+ */
+public class DataParallelTrainer {
+
+	private final NeuralNetwork network;
+
+	private final NeuralNetwork[] workers; // the first one is the network
+
+	private final long[] workerTimes; // nanoseconds spent in the passes by each worker
+
+	private long reduceTime;
+
+	public DataParallelTrainer(NeuralNetwork network) {
+		this(network, ComputePool.getParallelism());
+	}
+
+	public DataParallelTrainer(NeuralNetwork network, int numWorkers) {
+
+		if (numWorkers < 1)
+			throw new NotStrictlyPositiveException(numWorkers);
+
+		this.network = network;
+		this.workers = new NeuralNetwork[numWorkers];
+		this.workerTimes = new long[numWorkers];
+		this.workers[0] = network;
+
+		for (int w = 1; w < numWorkers; w++)
+			workers[w] = network.replica();
+	}
+
+	public double[] train(int iterations) {
+		return train(iterations, 0d);
+	}
+
+	/**
+	 * Full batch gradient descent, see {@link NeuralNetwork#train(int, double)}
+	 */
+	public double[] train(int iterations, double alphaCorrection) {
+
+		double[] costHistory = new double[iterations + 1];
+
+		for (int i = 0; i <= iterations; i++) {
+			boolean evaluated = network.evaluatesCost(i, iterations);
+			double cost = step(network.X, network.Y, evaluated);
+
+			if (evaluated) {
+				costHistory[i] = cost + network.regularization();
+				System.out.println("[" + i + "] alpha = " + network.alpha + "\tcost = " + costHistory[i]);
+			} else {
+				costHistory[i] = Double.NaN;
+			}
+			network.alpha += alphaCorrection;
+		}
+		printTimes();
+		return costHistory;
+	}
+
+	public double[] trainMiniBatch(int epochs, int batchSize) {
+		return trainMiniBatch(epochs, batchSize, 0d);
+	}
+
+	/**
+	 * Mini-batch gradient descent, see {@link NeuralNetwork#trainMiniBatch(int, int, double)}
+	 */
+	public double[] trainMiniBatch(int epochs, int batchSize, double alphaCorrection) {
+
+		double[] costHistory = new double[epochs + 1];
+		Random random = new Random();
+
+		for (int i = 0; i <= epochs; i++) {
+			BatchIterator batches = new BatchIterator(network.X, network.Y, batchSize, random); // Shuffles the order of the examples
+			boolean evaluated = network.evaluatesCost(i, epochs);
+			double cost = 0d;
+
+			while (batches.hasNext()) {
+				Examples batch = batches.next();
+				cost += step(batch.getFeatures(), batch.getLabels(), evaluated);
+			}
+
+			if (evaluated) {
+				costHistory[i] = cost + network.regularization();
+				System.out.println("[" + i + "] alpha = " + network.alpha + "\tcost = " + costHistory[i]);
+			} else {
+				costHistory[i] = Double.NaN;
+			}
+			network.alpha += alphaCorrection;
+		}
+		printTimes();
+		return costHistory;
+	}
+
+	public int getNumWorkers() {
+		return workers.length;
+	}
+
+	/**
+	 * @return the time (in nanoseconds) spent by each worker in the forward and backward passes since
+	 *         the creation of the trainer
+	 */
+	public long[] getWorkerTimes() {
+		return workerTimes.clone();
+	}
+
+	/**
+	 * @return the time (in nanoseconds) spent summing the gradients of the workers
+	 */
+	public long getReduceTime() {
+		return reduceTime;
+	}
+
+	/**
+	 * Updates the weights with the gradients of a batch
+	 *
+	 * @return the contribution of the batch to the cost (without the regularization), or 0 when
+	 *         withCost is false
+	 */
+	double step(FeatureMatrix features, Matrix labels, boolean withCost) {
+
+		final int rows = features.rows();
+		final int used = Math.min(workers.length, rows);
+		final double[] costs = new double[used];
+
+		ComputePool.forEachRange(0, used, 1, (start, end) -> {
+			for (int w = start; w < end; w++) {
+				final int first = (int) ((long) rows * w / used), last = (int) ((long) rows * (w + 1) / used) - 1;
+				final NeuralNetwork worker = workers[w];
+				final Matrix shardLabels = labels.rowsView(first, last);
+				final long t0 = System.nanoTime();
+
+				worker.feedForward(features.rowsView(first, last));
+				worker.backPropagation(shardLabels);
+				worker.gradients.scaleInPlace((double) (last - first + 1) / rows);
+
+				if (withCost)
+					costs[w] = NeuralNetwork.cost(worker.H, shardLabels, network.m);
+
+				workerTimes[w] += System.nanoTime() - t0;
+			}
+		});
+
+		final long t0 = System.nanoTime();
+		reduce(used);
+		reduceTime += System.nanoTime() - t0;
+
+		network.gradientDescent();
+
+		double cost = 0d;
+		for (double c : costs)
+			cost += c;
+		return cost;
+	}
+
+	/**
+	 * Sums the gradients of the first workers into the ones of the network, adding them two by two
+	 */
+	private void reduce(int used) {
+
+		for (int stride = 1; stride < used; stride *= 2) {
+			final int s = stride;
+			final int pairs = (used - s + 2 * s - 1) / (2 * s);
+
+			ComputePool.forEachRange(0, pairs, 1, (start, end) -> {
+				for (int p = start; p < end; p++)
+					workers[2 * s * p].gradients.addInPlace(workers[2 * s * p + s].gradients);
+			});
+		}
+	}
+
+	private void printTimes() {
+
+		StringBuilder times = new StringBuilder("workers (ms):");
+
+		for (long time : workerTimes)
+			times.append(' ').append(time / 1000000L);
+
+		System.out.println(times.append("\treduce (ms): ").append(reduceTime / 1000000L));
+	}
+}
@@ -0,0 +1,131 @@
+package fr.asenka.detektor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Random;
+
+import fr.asenka.detektor.util.BatchIterator;
+import fr.asenka.detektor.util.Examples;
+
+/**
+ * Trains a network on a shard of the data set (the data of the network) in sync with the other
+ * workers of a {@link ParameterServer}.
+ *
+ * The worker computes the gradients of each of its batches, pushes them to the server and goes on
+ * with the parameters it answers. The number of examples of the network becomes the size of the
+ * whole data set, so the regularization is the same as on a single process.
+ */
+public class DistributedTrainer implements Closeable {
+
+	private final NeuralNetwork network;
+
+	private final Socket socket;
+
+	private final DataInputStream input;
+
+	private final DataOutputStream output;
+
+	private long version;
+
+	/**
+	 * Joins the server, waiting for all the other workers
+	 */
+	public DistributedTrainer(NeuralNetwork network, String host, int port) throws IOException {
+
+		this.network = network;
+		this.socket = new Socket(host, port);
+
+		try {
+			this.socket.setTcpNoDelay(true);
+			this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			output.writeInt(ParameterServer.MAGIC_NUMBER);
+			output.writeInt(network.parameters.columns());
+			output.writeInt(network.m);
+			output.flush();
+
+			network.m = input.readInt();
+			this.version = GradientCodec.readParameters(input, network.parameters);
+
+		} catch (IOException | RuntimeException e) {
+			try {
+				socket.close();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Mini-batch gradient descent on the shard, see {@link NeuralNetwork#trainMiniBatch(int, int, double)}
+	 *
+	 * @return the cost of the shard after each epoch (NaN for the epochs skipped by the cost interval)
+	 */
+	public double[] trainMiniBatch(int epochs, int batchSize) throws IOException {
+
+		double[] costHistory = new double[epochs + 1];
+		Random random = new Random();
+
+		for (int i = 0; i <= epochs; i++) {
+			BatchIterator batches = new BatchIterator(network.X, network.Y, batchSize, random); // Shuffles the order of the examples
+			boolean evaluated = network.evaluatesCost(i, epochs);
+			double cost = 0d;
+
+			while (batches.hasNext()) {
+				Examples batch = batches.next();
+				network.feedForward(batch.getFeatures());
+				network.backPropagation(batch.getLabels());
+				push(batch.size());
+
+				if (evaluated)
+					cost += NeuralNetwork.cost(network.H, batch.getLabels(), network.m);
+			}
+
+			if (evaluated) {
+				costHistory[i] = cost + network.regularization();
+				System.out.println("[" + i + "] version = " + version + "\tcost = " + costHistory[i]);
+			} else {
+				costHistory[i] = Double.NaN;
+			}
+		}
+		return costHistory;
+	}
+
+	/**
+	 * @return the version of the parameters of the network on the server
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Leaves the server
+	 */
+	@Override
+	public void close() throws IOException {
+
+		try {
+			output.writeByte(ParameterServer.LEAVE);
+			output.flush();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private void push(int rows) throws IOException {
+
+		output.writeByte(ParameterServer.PUSH);
+		output.writeInt(rows);
+		GradientCodec.writeGradients(output, network.gradients);
+		output.flush();
+
+		version = GradientCodec.readParameters(input, network.parameters);
+	}
+}
@@ -0,0 +1,87 @@
+package fr.asenka.detektor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+
+import fr.asenka.detektor.util.Matrix;
+
+/**
+ * Binary encoding of the parameters and the gradients exchanged with the {@link ParameterServer}.
+ *
+ * Both are rows of the flat buffers of a network (see {@link NeuralNetwork#parameters}), written as
+ * their number of values followed by the values, big-endian. The parameters are written as doubles
+ * so that every worker has exactly the weights of the server; the gradients, sent after each batch,
+ * are written as floats to halve the traffic.
+ */
+final class GradientCodec {
+
+	private GradientCodec() {
+	}
+
+	static void writeParameters(DataOutputStream output, long version, double[] parameters) throws IOException {
+
+		ByteBuffer bytes = ByteBuffer.allocate(parameters.length * Double.BYTES);
+		bytes.asDoubleBuffer().put(parameters);
+
+		output.writeLong(version);
+		output.writeInt(parameters.length);
+		output.write(bytes.array());
+	}
+
+	/**
+	 * Reads parameters into the given row
+	 *
+	 * @return their version
+	 */
+	static long readParameters(DataInputStream input, Matrix parameters) throws IOException {
+
+		long version = input.readLong();
+		DoubleBuffer values = ByteBuffer.wrap(readValues(input, parameters.columns(), Double.BYTES)).asDoubleBuffer();
+
+		for (int i = 0; i < parameters.columns(); i++)
+			parameters.set(0, i, values.get(i));
+
+		return version;
+	}
+
+	static void writeGradients(DataOutputStream output, Matrix gradients) throws IOException {
+
+		ByteBuffer bytes = ByteBuffer.allocate(gradients.columns() * Float.BYTES);
+		FloatBuffer values = bytes.asFloatBuffer();
+
+		for (int i = 0; i < gradients.columns(); i++)
+			values.put(i, (float) gradients.get(0, i));
+
+		output.writeInt(gradients.columns());
+		output.write(bytes.array());
+	}
+
+	/**
+	 * Reads gradients into the given row
+	 */
+	static void readGradients(DataInputStream input, Matrix gradients) throws IOException {
+
+		FloatBuffer values = ByteBuffer.wrap(readValues(input, gradients.columns(), Float.BYTES)).asFloatBuffer();
+
+		for (int i = 0; i < gradients.columns(); i++)
+			gradients.set(0, i, values.get(i));
+	}
+
+	private static byte[] readValues(DataInputStream input, int expected, int size) throws IOException {
+
+		int count = input.readInt();
+
+		if (count != expected)
+			throw new DimensionMismatchException(count, expected);
+
+		byte[] bytes = new byte[count * size];
+		input.readFully(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,272 @@
+package fr.asenka.detektor;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+
+import fr.asenka.detektor.util.Activation;
+import fr.asenka.detektor.util.ComputePool;
+import fr.asenka.detektor.util.FeatureMatrix;
+import fr.asenka.detektor.util.Matrix;
+import fr.asenka.detektor.util.MnistDataSet;
+
+/**
+ * Predicts the classes of examples with the weights of a network (any number of layers).
+ *
+ * The engine is built once from the weights: they are transposed and packed in contiguous arrays
+ * and their bias is kept apart, so no column of ones is ever concatenated to the features. The
+ * examples are split in chunks of rows predicted in parallel in the {@link ComputePool}; each row
+ * goes through the whole network in per-thread scratch buffers, so the features are read once and
+ * no intermediate matrix is allocated. The same buffers serve the single example methods
+ * ({@link #classify(double[])} and {@link #classify(byte[])}), which allocate nothing once the
+ * calling thread has warmed up. An engine can be shared by several threads.
+ */
+public final class InferenceEngine {
+
+	private static final int MR = 4;
+
+	private static final int KC = 128;
+
+	private static final int CHUNK_ROWS = 256;
+
+	private final int n, h, k;
+
+	private final int[] sizes; // inputs and units of each layer
+
+	private final double[][] weights; // inputs x units of each layer, transposed
+
+	private final double[][] bias;
+
+	private final Activation[] activations;
+
+	private final ThreadLocal<double[][]> scratch;
+
+	public InferenceEngine(Matrix[] weights) {
+		this(weights, Activation.SIGMOID);
+	}
+
+	public InferenceEngine(Matrix[] weights, Activation activation) {
+		this(weights, sameActivation(weights.length, activation));
+	}
+
+	/**
+	 * @param weights theta1 (h x (n + 1)), theta2... one per layer, the bias weights in the first column
+	 * @param activations the activation of each layer
+	 */
+	public InferenceEngine(Matrix[] weights, Activation[] activations) {
+
+		if (activations.length != weights.length)
+			throw new DimensionMismatchException(activations.length, weights.length);
+
+		this.sizes = new int[weights.length + 1];
+		this.sizes[0] = weights[0].columns() - 1;
+
+		for (int l = 0; l < weights.length; l++) {
+			if (weights[l].columns() != sizes[l] + 1)
+				throw new DimensionMismatchException(weights[l].columns(), sizes[l] + 1);
+			sizes[l + 1] = weights[l].rows();
+		}
+
+		this.n = sizes[0];
+		this.h = sizes[1];
+		this.k = sizes[weights.length];
+		this.activations = activations.clone();
+		this.weights = new double[weights.length][];
+		this.bias = new double[weights.length][];
+
+		int largest = 1;
+
+		for (int l = 0; l < weights.length; l++) {
+			this.weights[l] = new double[sizes[l] * sizes[l + 1]];
+			this.bias[l] = new double[sizes[l + 1]];
+			pack(weights[l], this.weights[l], this.bias[l]);
+
+			if (l > 0)
+				largest = Math.max(largest, sizes[l + 1]);
+		}
+
+		final int size = largest;
+		this.scratch = ThreadLocal.withInitial(() -> new double[][] { new double[MR * KC], new double[MR * h], new double[size], new double[size] });
+	}
+
+	public int getNumFeatures() {
+		return n;
+	}
+
+	public int getNumClasses() {
+		return k;
+	}
+
+	/**
+	 * @return the predicted class of each example (one row per example)
+	 */
+	public Matrix predict(FeatureMatrix features) {
+
+		if (features.columns() != n)
+			throw new DimensionMismatchException(features.columns(), n);
+
+		Matrix predictions = new Matrix(features.rows(), 1);
+		ComputePool.forEachRange(0, features.rows(), CHUNK_ROWS, (start, end) -> predict(features, start, end, predictions));
+		return predictions;
+	}
+
+	/**
+	 * @return the predicted class of a single example
+	 */
+	public int classify(double[] features) {
+
+		if (features.length != n)
+			throw new DimensionMismatchException(features.length, n);
+
+		final double[][] buffers = scratch.get();
+		final double[] hidden = buffers[1];
+
+		System.arraycopy(bias[0], 0, hidden, 0, h);
+
+		for (int q = 0; q < n; q++) {
+			final double v = features[q];
+
+			if (v != 0d)
+				for (int j = 0, w = q * h; j < h; j++)
+					hidden[j] += v * weights[0][w + j];
+		}
+		return classify(hidden, 0, buffers);
+	}
+
+	/**
+	 * @return the predicted class of a single image, the pixels (0 to 255) being scaled to [0, 1]
+	 *         like in {@link MnistDataSet}
+	 */
+	public int classify(byte[] pixels) {
+		return classify(pixels, MnistDataSet.PIXEL_SCALE);
+	}
+
+	/**
+	 * @return the predicted class of a single example whose features are the unsigned bytes times scale
+	 */
+	public int classify(byte[] pixels, double scale) {
+
+		if (pixels.length != n)
+			throw new DimensionMismatchException(pixels.length, n);
+
+		final double[][] buffers = scratch.get();
+		final double[] hidden = buffers[1];
+
+		Arrays.fill(hidden, 0, h, 0d);
+
+		for (int q = 0; q < n; q++) {
+			final int v = pixels[q] & 0xFF;
+
+			if (v != 0)
+				for (int j = 0, w = q * h; j < h; j++)
+					hidden[j] += v * weights[0][w + j];
+		}
+
+		// The scale is applied once to the sums instead of to every pixel
+		for (int j = 0; j < h; j++)
+			hidden[j] = bias[0][j] + scale * hidden[j];
+
+		return classify(hidden, 0, buffers);
+	}
+
+	private void predict(FeatureMatrix features, int start, int end, Matrix predictions) {
+
+		final double[][] buffers = scratch.get();
+		final double[] panel = buffers[0], hidden = buffers[1];
+
+		for (int r = start; r < end; r += MR) {
+			final int rows = Math.min(MR, end - r);
+
+			for (int s = 0; s < rows; s++)
+				System.arraycopy(bias[0], 0, hidden, s * h, h);
+
+			// hidden = features . W1^T, MR rows at a time from panels of features widened to doubles
+			for (int pc = 0; pc < n; pc += KC) {
+				final int kc = Math.min(KC, n - pc);
+
+				for (int s = 0; s < rows; s++)
+					features.readRow(r + s, pc, kc, panel, s * KC);
+
+				for (int s = 0; s < rows; s++) {
+					final int hs = s * h;
+
+					for (int q = 0; q < kc; q++) {
+						final double v = panel[s * KC + q];
+
+						if (v == 0d) // Most of the pixels of an image are blank
+							continue;
+
+						for (int j = 0, w = (pc + q) * h; j < h; j++)
+							hidden[hs + j] += v * weights[0][w + j];
+					}
+				}
+			}
+
+			for (int s = 0; s < rows; s++)
+				predictions.set(r + s, 0, classify(hidden, s * h, buffers));
+		}
+	}
+
+	/**
+	 * @return the predicted class from the weighted sums of the first layer (from offset in hidden),
+	 *         the next layers being computed in the two last scratch buffers in turn
+	 */
+	private int classify(double[] hidden, int offset, double[][] buffers) {
+
+		double[] values = hidden;
+		int start = offset;
+
+		for (int j = 0; j < h; j++)
+			hidden[offset + j] = activations[0].value(hidden[offset + j]);
+
+		for (int l = 1; l < weights.length; l++) {
+			final int inputs = sizes[l], units = sizes[l + 1];
+			final double[] w = weights[l], output = buffers[2 + (l - 1) % 2];
+
+			System.arraycopy(bias[l], 0, output, 0, units);
+
+			for (int j = 0; j < inputs; j++) {
+				final double v = values[start + j];
+				for (int c = 0, q = j * units; c < units; c++)
+					output[c] += v * w[q + c];
+			}
+
+			for (int c = 0; c < units; c++)
+				output[c] = activations[l].value(output[c]);
+
+			values = output;
+			start = 0;
+		}
+
+		return indexMax(values, start, k);
+	}
+
+	private static int indexMax(double[] values, int offset, int length) {
+
+		int index = 0;
+
+		for (int i = 1; i < length; i++)
+			if (values[offset + i] >= values[offset + index])
+				index = i;
+
+		return index;
+	}
+
+	private static Activation[] sameActivation(int layers, Activation activation) {
+
+		Activation[] activations = new Activation[layers];
+		Arrays.fill(activations, activation);
+		return activations;
+	}
+
+	private static void pack(Matrix theta, double[] weights, double[] bias) {
+
+		final int rows = theta.rows(), columns = theta.columns() - 1;
+
+		for (int r = 0; r < rows; r++) {
+			bias[r] = theta.get(r, 0);
+			for (int c = 0; c < columns; c++)
+				weights[c * rows + r] = theta.get(r, c + 1);
+		}
+	}
+}
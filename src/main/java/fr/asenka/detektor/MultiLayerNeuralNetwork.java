@@ -0,0 +1,156 @@
+package fr.asenka.detektor;
+
+import static fr.asenka.detektor.util.Matrix.binaryMatrix;
+import static fr.asenka.detektor.util.Matrix.multiply;
+import static fr.asenka.detektor.util.Matrix.multiplyTransposed;
+import static fr.asenka.detektor.util.Matrix.subtract;
+import static fr.asenka.detektor.util.Matrix.sumByColumn;
+import static fr.asenka.detektor.util.Matrix.transposeMultiply;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+
+import fr.asenka.detektor.util.Activation;
+import fr.asenka.detektor.util.FeatureMatrix;
+import fr.asenka.detektor.util.FeatureStorage;
+import fr.asenka.detektor.util.Matrix;
+
+/**
+ * Network with any number of hidden layers, each one with its own activation. The output layer
+ * is always a sigmoid (the cost is the logistic one).
+ *
+ * The activations and the errors of each layer are written in buffers allocated for the largest
+ * batch seen so far, so an iteration only costs the products of the layers.
+ */
+public class MultiLayerNeuralNetwork extends NeuralNetwork {
+
+	private final int[] sizes;
+
+	private final Activation[] activations; // one per layer
+
+	// Buffers reused by every iteration, one per layer
+	private Matrix[] aBuffers, dBuffers;
+
+	private final Matrix[] D; // errors of each layer for the current batch
+
+	/**
+	 * @param layerSizes the number of features, the size of each hidden layer and the number of classes
+	 * @param hiddenActivations the activation of each hidden layer
+	 */
+	public MultiLayerNeuralNetwork(int[] layerSizes, Activation[] hiddenActivations, double learningRate, FeatureMatrix data, Matrix labels) {
+
+		if (layerSizes.length < 2)
+			throw new NumberIsTooSmallException(layerSizes.length, 2, true);
+		if (hiddenActivations.length != layerSizes.length - 2)
+			throw new DimensionMismatchException(hiddenActivations.length, layerSizes.length - 2);
+		if (data.columns() != layerSizes[0])
+			throw new DimensionMismatchException(data.columns(), layerSizes[0]);
+
+		final int layers = layerSizes.length - 1;
+
+		this.sizes = layerSizes.clone();
+		this.activations = Arrays.copyOf(hiddenActivations, layers);
+		this.activations[layers - 1] = SIGMOID;
+
+		this.m = data.rows();
+		this.n = sizes[0];
+		this.h = sizes[1];
+		this.k = sizes[layers];
+		this.alpha = learningRate;
+
+		this.X = data;
+		this.Y = binaryMatrix(labels.transpose(), k).transpose();
+		this.A = new Matrix[layers];
+		this.D = new Matrix[layers];
+		allocateParameters(sizes);
+		initializeWeights();
+	}
+
+	/**
+	 * @param storage the format the features are converted to
+	 */
+	public MultiLayerNeuralNetwork(int[] layerSizes, Activation[] hiddenActivations, double learningRate, FeatureMatrix data, Matrix labels, FeatureStorage storage) {
+		this(layerSizes, hiddenActivations, learningRate, storage.convert(data), labels);
+	}
+
+	protected MultiLayerNeuralNetwork(MultiLayerNeuralNetwork source) {
+		super(source);
+		this.sizes = source.sizes;
+		this.activations = source.activations;
+		this.D = new Matrix[A.length];
+	}
+
+	@Override
+	MultiLayerNeuralNetwork replica() {
+		return new MultiLayerNeuralNetwork(this);
+	}
+
+	private void allocateBuffers(int rows) {
+
+		aBuffers = new Matrix[A.length];
+		dBuffers = new Matrix[A.length];
+
+		for (int l = 0; l < A.length; l++) {
+			aBuffers[l] = new Matrix(rows, sizes[l + 1]);
+			dBuffers[l] = new Matrix(rows, sizes[l + 1]);
+		}
+	}
+
+	@Override
+	void feedForward(FeatureMatrix features) {
+
+		int rows = features.rows();
+
+		if (aBuffers == null || aBuffers[0].rows() < rows)
+			allocateBuffers(rows);
+
+		input = features;
+
+		for (int l = 0; l < A.length; l++)
+			A[l] = aBuffers[l].rowsView(0, rows - 1);
+
+		activations[0].applyInPlace(input.multiplyTransposed(W[0], A[0]).addToEachRow(B[0]));
+
+		for (int l = 1; l < A.length; l++)
+			activations[l].applyInPlace(multiplyTransposed(A[l - 1], W[l], A[l]).addToEachRow(B[l]));
+
+		H = A[A.length - 1];
+	}
+
+	@Override
+	void backPropagation(Matrix labels) {
+
+		int rows = labels.rows();
+		int last = A.length - 1;
+
+		for (int l = 0; l < A.length; l++)
+			D[l] = dBuffers[l].rowsView(0, rows - 1);
+
+		// The errors go back from the output layer, one row per example
+		subtract(A[last], labels, D[last]);
+
+		for (int l = last; l > 0; l--) {
+			transposeMultiply(D[l], A[l - 1], dW[l]);
+			sumByColumn(D[l], dB[l]);
+			multiply(D[l], W[l], D[l - 1]);
+			activations[l - 1].multiplyByDerivativeInPlace(D[l - 1], A[l - 1]);
+		}
+
+		input.premultiplyTransposed(D[0], dW[0]);
+		sumByColumn(D[0], dB[0]);
+		gradients.scaleInPlace(1d / rows);
+
+		// The bias weights are not regularized
+		for (int l = 0; l < A.length; l++)
+			dW[l].axpy(LAMBDA / m, W[l]);
+	}
+
+	/**
+	 * @return an inference engine with the current weights, to predict many batches
+	 */
+	public InferenceEngine compile() {
+		return new InferenceEngine(getWeights(), activations);
+	}
+}
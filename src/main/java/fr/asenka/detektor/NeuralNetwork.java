@@ -1,8 +1,18 @@
 package fr.asenka.detektor;
 
-import java.util.function.Function;
+import static fr.asenka.detektor.util.Matrix.crossEntropy;
+import static fr.asenka.detektor.util.Matrix.sumOfSquares;
 
+import java.util.Random;
+
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+
+import fr.asenka.detektor.util.Activation;
+import fr.asenka.detektor.util.BatchIterator;
+import fr.asenka.detektor.util.Examples;
+import fr.asenka.detektor.util.FeatureMatrix;
 import fr.asenka.detektor.util.Matrix;
+import fr.asenka.detektor.util.Optimizer;
 
 public abstract class NeuralNetwork {
 
@@ -12,7 +22,7 @@ public abstract class NeuralNetwork {
 
 	protected double alpha = 2.5d;
 
-	protected static final Function<Double, Double> SIGMOID = z -> 1d / (1d + Math.exp(-z));
+	protected static final Activation SIGMOID = Activation.SIGMOID;
 
 	protected int k; // classes
 
@@ -22,26 +32,257 @@ public abstract class NeuralNetwork {
 
 	protected int h; // hidden layer size
 
-	protected Matrix X; // data
+	protected FeatureMatrix X; // data
 
 	protected Matrix Y; // binarized labels
 
-	protected Matrix[] T;
+	protected Matrix parameters; // weights and biases of all the layers, in a single row
+
+	protected Matrix gradients; // partial derivatives of the parameters, laid out the same way
+
+	protected Matrix[] W, B; // weights (units x inputs) and bias (1 x units) of each layer, views on parameters
 
-	protected Matrix[] dT;
+	protected Matrix[] dW, dB; // views on gradients
 
-	protected Matrix A[];
+	protected FeatureMatrix input; // features of the current batch
+
+	protected Matrix A[]; // activations of the hidden and output layers
 
 	protected Matrix H;
 
+	protected Optimizer optimizer = Optimizer.sgd();
+
+	protected int costInterval = 1;
+
+	private int[] layerSizes;
+
+	protected NeuralNetwork() {
+	}
+
+	/**
+	 * Creates a network with the layers and the data of source sharing its parameters, but with its
+	 * own gradients and buffers
+	 */
+	protected NeuralNetwork(NeuralNetwork source) {
+
+		this.alpha = source.alpha;
+		this.k = source.k;
+		this.m = source.m;
+		this.n = source.n;
+		this.h = source.h;
+		this.X = source.X;
+		this.Y = source.Y;
+		this.A = new Matrix[source.A.length];
+		bindParameters(source.parameters, source.layerSizes);
+	}
+
 	public double[] train(int iterations) {
 		return train(iterations, 0d);
 	}
 
-	public abstract double[] train(int iterations, double alphaCorrection);
+	public double[] train(int iterations, double alphaCorrection) {
+		
+		double[] costHistory = new double[iterations + 1];
+		
+		for(int i = 0; i <= iterations; i++) {
+			feedForward(X); // Compute the activations of each layer and H
+			backPropagation(Y); // Compute the gradients of each layer
+			gradientDescent(); // Update the weights
+			
+			if (evaluatesCost(i, iterations)) {
+				costHistory[i] = computeCost(); // Compute J
+				System.out.println("[" + i + "] alpha = " + alpha + "\tcost = " + costHistory[i]);
+			} else {
+				costHistory[i] = Double.NaN;
+			}
+			this.alpha += alphaCorrection;
+		}
+		return costHistory;
+	}
+
+	public double[] trainMiniBatch(int epochs, int batchSize) {
+		return trainMiniBatch(epochs, batchSize, 0d);
+	}
+
+	/**
+	 * Mini-batch gradient descent (stochastic gradient descent when batchSize is 1): the weights are
+	 * updated after each batch and the examples are shuffled at the beginning of each epoch.
+	 */
+	public double[] trainMiniBatch(int epochs, int batchSize, double alphaCorrection) {
+		
+		double[] costHistory = new double[epochs + 1];
+		Random random = new Random();
+		
+		for(int i = 0; i <= epochs; i++) {
+			boolean evaluated = evaluatesCost(i, epochs);
+			double cost = epoch(random, batchSize, evaluated);
+			
+			if (evaluated) {
+				costHistory[i] = cost + regularization();
+				System.out.println("[" + i + "] alpha = " + alpha + "\tcost = " + costHistory[i]);
+			} else {
+				costHistory[i] = Double.NaN;
+			}
+			this.alpha += alphaCorrection;
+		}
+		return costHistory;
+	}
+
+	/**
+	 * Updates the weights once per batch over all the examples, in a random order
+	 *
+	 * @return the cost of the examples (without the regularization) as they were predicted before each
+	 *         update, or 0 when withCost is false
+	 */
+	double epoch(Random random, int batchSize, boolean withCost) {
+
+		BatchIterator batches = new BatchIterator(X, Y, batchSize, random); // Shuffles the order of the examples
+		double cost = 0d;
+
+		while (batches.hasNext()) {
+			Examples batch = batches.next();
+			feedForward(batch.getFeatures());
+			backPropagation(batch.getLabels());
+			gradientDescent();
+
+			if (withCost)
+				cost += cost(H, batch.getLabels(), m); // Contribution of the batch to the mean over the epoch
+		}
+		return cost;
+	}
+
+	public int getCostInterval() {
+		return costInterval;
+	}
+
+	/**
+	 * @param interval the cost is only computed every interval iterations (or epochs) and at the last
+	 *            one, the history holding NaN for the others
+	 */
+	public NeuralNetwork setCostInterval(int interval) {
+		
+		if (interval < 1)
+			throw new NotStrictlyPositiveException(interval);
+		
+		this.costInterval = interval;
+		return this;
+	}
+
+	/**
+	 * @return true if the cost must be computed at this iteration
+	 */
+	boolean evaluatesCost(int iteration, int lastIteration) {
+		return iteration % costInterval == 0 || iteration == lastIteration;
+	}
+
+	/**
+	 * Computes the activations A of each layer for the given examples (H being the last one)
+	 */
+	abstract void feedForward(FeatureMatrix features);
 
+	/**
+	 * Computes the gradients from the activations of the last call to {@link #feedForward(FeatureMatrix)}
+	 */
+	abstract void backPropagation(Matrix labels);
+
+	/**
+	 * @return a network sharing the parameters of this one, to compute gradients on other examples in
+	 *         another thread (see {@link DataParallelTrainer})
+	 */
+	abstract NeuralNetwork replica();
+
+	void gradientDescent() {
+		// The gradients already hold the regularization, the optimizer only applies the step
+		optimizer.update(parameters, gradients, alpha);
+	}
+
+	public Optimizer getOptimizer() {
+		return optimizer;
+	}
+
+	/**
+	 * @param optimizer the update rule of the weights (plain gradient descent by default), alpha being
+	 *            its learning rate
+	 */
+	public NeuralNetwork setOptimizer(Optimizer optimizer) {
+		this.optimizer = optimizer;
+		return this;
+	}
+
+	/**
+	 * @return theta1, theta2... (a copy), the bias weights of each layer in the first column
+	 */
 	public Matrix[] getWeights() {
-		return T;
+
+		Matrix[] thetas = new Matrix[W.length];
+
+		for (int i = 0; i < W.length; i++) {
+			thetas[i] = new Matrix(W[i].rows(), W[i].columns() + 1);
+			thetas[i].subMatrixView(0, W[i].rows() - 1, 0, 0).copyFrom(B[i].transposedView());
+			thetas[i].subMatrixView(0, W[i].rows() - 1, 1, W[i].columns()).copyFrom(W[i]);
+		}
+		return thetas;
+	}
+
+	/**
+	 * Allocates the parameters and the gradients of the layers and their views.
+	 *
+	 * @param sizes the number of inputs followed by the number of units of each layer
+	 */
+	protected void allocateParameters(int... sizes) {
+
+		int count = 0;
+
+		for (int i = 0; i < sizes.length - 1; i++)
+			count += sizes[i + 1] * (sizes[i] + 1);
+
+		bindParameters(new Matrix(1, count), sizes);
+	}
+
+	private void bindParameters(Matrix parameters, int[] sizes) {
+
+		final int layers = sizes.length - 1;
+
+		this.layerSizes = sizes.clone();
+		this.parameters = parameters;
+		this.gradients = new Matrix(1, parameters.columns());
+		this.W = new Matrix[layers];
+		this.B = new Matrix[layers];
+		this.dW = new Matrix[layers];
+		this.dB = new Matrix[layers];
+
+		for (int i = 0, start = 0; i < layers; i++) {
+			final int units = sizes[i + 1], inputs = sizes[i];
+
+			W[i] = parameters.reshapedView(start, units, inputs);
+			dW[i] = gradients.reshapedView(start, units, inputs);
+			start += units * inputs;
+			B[i] = parameters.reshapedView(start, 1, units);
+			dB[i] = gradients.reshapedView(start, 1, units);
+			start += units;
+		}
+	}
+
+	protected void initializeWeights() {
+		parameters.copyFrom(Matrix.random(1, parameters.columns(), -0.5, 0.5));
+	}
+
+	private double computeCost() {
+		return cost(H, Y, m) + regularization();
+	}
+
+	static final double cost(Matrix predictions, Matrix labels, int numExamples) {
+		return crossEntropy(predictions, labels) / numExamples;
+	}
+
+	double regularization() {
+		
+		double sum = 0d;
+		
+		for (Matrix weights : W)
+			sum += sumOfSquares(weights);
+		
+		return (LAMBDA / (2d * m)) * sum;
 	}
 
 	public static final int countCorrectPredictions(Matrix predictions, Matrix labels) {
@@ -0,0 +1,298 @@
+package fr.asenka.detektor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NotPositiveException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+
+import fr.asenka.detektor.util.Matrix;
+
+/**
+ * Holds the parameters of a network trained by several processes (see {@link DistributedTrainer}),
+ * each one owning a shard of the data set.
+ *
+ * The workers connect through a socket, wait until all of them have joined and then push the
+ * gradients of each of their batches; the server answers with the up-to-date parameters. With a
+ * staleness of 0 the updates are synchronous: the gradients of all the workers are averaged
+ * (weighted by the size of their batch) and applied once, so the training is the same as a
+ * single process on the concatenated batches. With a staleness s > 0 each gradient is applied as
+ * soon as it arrives, but a worker never gets more than s pushes ahead of the slowest one.
+ *
+ * The descent step is the one of the network given to the server, whose data is never used; its
+ * number of examples is set to the size of the whole data set (the sum of the shards).
+ */
+public class ParameterServer implements Closeable {
+
+	static final int MAGIC_NUMBER = 0x44455053;
+
+	static final byte PUSH = 1;
+
+	static final byte LEAVE = 0;
+
+	private final NeuralNetwork network;
+
+	private final int numWorkers;
+
+	private final int staleness;
+
+	private final ServerSocket serverSocket;
+
+	private final List<Socket> connections = new ArrayList<>();
+
+	private final Matrix sum; // weighted sum of the gradients of the current synchronous step
+
+	private int joined, active, totalRows;
+
+	private int pushes, pendingRows; // of the current synchronous step
+
+	private long version;
+
+	private final int[] clocks; // number of pushes of each worker, -1 once it has left
+
+	/**
+	 * Listens to the loopback address only: the workers must run on the same host
+	 *
+	 * @param port the port to listen to, 0 for any free port
+	 */
+	public ParameterServer(NeuralNetwork network, int numWorkers, int staleness, int port) throws IOException {
+		this(network, numWorkers, staleness, InetAddress.getLoopbackAddress(), port);
+	}
+
+	/**
+	 * The server does not authenticate its workers: the address to listen to should only be
+	 * reachable from a trusted network
+	 *
+	 * @param address the local address to listen to, null for all of them
+	 * @param port the port to listen to, 0 for any free port
+	 */
+	public ParameterServer(NeuralNetwork network, int numWorkers, int staleness, InetAddress address, int port) throws IOException {
+
+		if (numWorkers < 1)
+			throw new NotStrictlyPositiveException(numWorkers);
+		if (staleness < 0)
+			throw new NotPositiveException(staleness);
+
+		this.network = network;
+		this.numWorkers = numWorkers;
+		this.staleness = staleness;
+		this.sum = new Matrix(1, network.parameters.columns());
+		this.clocks = new int[numWorkers];
+		this.serverSocket = new ServerSocket(port, 0, address);
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public InetAddress getAddress() {
+		return serverSocket.getInetAddress();
+	}
+
+	/**
+	 * @return the number of updates of the parameters so far
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Accepts the connections of the workers in a background thread
+	 */
+	public ParameterServer start() {
+
+		Thread acceptor = new Thread(this::accept, "parameter-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return this;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		serverSocket.close();
+
+		synchronized (connections) {
+			for (Socket connection : connections)
+				connection.close();
+		}
+	}
+
+	private void accept() {
+
+		for (int worker = 0; worker < numWorkers; worker++) {
+			try {
+				Socket socket = serverSocket.accept();
+				final int id = worker;
+
+				synchronized (connections) {
+					connections.add(socket);
+				}
+
+				Thread thread = new Thread(() -> serve(id, socket), "parameter-server-" + id);
+				thread.setDaemon(true);
+				thread.start();
+
+			} catch (SocketException e) {
+				return; // Closed
+			} catch (IOException e) {
+				e.printStackTrace();
+				reject(worker);
+			}
+		}
+	}
+
+	private void serve(int worker, Socket socket) {
+
+		boolean joinedWorker = false;
+
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+
+			if (input.readInt() != MAGIC_NUMBER || input.readInt() != network.parameters.columns())
+				throw new IOException("Worker " + worker + " does not train the same network");
+
+			join(input.readInt());
+			joinedWorker = true;
+			int total = awaitWorkers();
+			double[] parameters = new double[network.parameters.columns()];
+			Matrix gradients = new Matrix(1, parameters.length);
+
+			output.writeInt(total);
+			GradientCodec.writeParameters(output, snapshot(parameters), parameters);
+			output.flush();
+
+			while (input.readByte() == PUSH) {
+				int rows = input.readInt();
+				GradientCodec.readGradients(input, gradients);
+				push(worker, rows, gradients);
+				GradientCodec.writeParameters(output, snapshot(parameters), parameters);
+				output.flush();
+			}
+		} catch (IOException | InterruptedException | DimensionMismatchException e) {
+			if (!serverSocket.isClosed())
+				System.err.println("Parameter server: " + e);
+		} finally {
+			// A worker that failed before joining (closed or reset connection, partial header...) is
+			// rejected, so that the others do not wait for it
+			if (joinedWorker)
+				leave(worker);
+			else
+				reject(worker);
+		}
+	}
+
+	private synchronized void join(int rows) {
+
+		joined++;
+		active++;
+		totalRows += rows;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for all the workers
+	 *
+	 * @return the number of examples of the whole data set
+	 */
+	private synchronized int awaitWorkers() throws InterruptedException {
+
+		while (joined < numWorkers)
+			wait();
+
+		network.m = totalRows;
+		return totalRows;
+	}
+
+	/**
+	 * Lets the other workers start without a worker that could not join (e.g. whose network differs)
+	 */
+	private synchronized void reject(int worker) {
+		joined++;
+		clocks[worker] = -1;
+		notifyAll();
+	}
+
+	private synchronized void push(int worker, int rows, Matrix gradients) throws InterruptedException {
+
+		if (staleness == 0) {
+			long step = version;
+
+			sum.axpy(rows, gradients);
+			pendingRows += rows;
+
+			if (++pushes == active)
+				applySum();
+
+			while (version == step)
+				wait();
+
+		} else {
+			network.gradients.copyFrom(gradients);
+			network.gradientDescent();
+			version++;
+			clocks[worker]++;
+			notifyAll();
+
+			while (slowestClock() < clocks[worker] - staleness)
+				wait();
+		}
+	}
+
+	private synchronized void leave(int worker) {
+
+		active--;
+		clocks[worker] = -1;
+
+		if (staleness == 0 && pushes > 0 && pushes == active)
+			applySum();
+
+		notifyAll();
+	}
+
+	private void applySum() {
+
+		network.gradients.copyFrom(sum.scaleInPlace(1d / pendingRows));
+		network.gradientDescent();
+		sum.fill(0d);
+		pushes = 0;
+		pendingRows = 0;
+		version++;
+		notifyAll();
+	}
+
+	private int slowestClock() {
+
+		int slowest = Integer.MAX_VALUE;
+
+		for (int clock : clocks)
+			if (clock >= 0)
+				slowest = Math.min(slowest, clock);
+
+		return slowest;
+	}
+
+	/**
+	 * Copies the current parameters
+	 *
+	 * @return their version
+	 */
+	private synchronized long snapshot(double[] parameters) {
+
+		for (int i = 0; i < parameters.length; i++)
+			parameters[i] = network.parameters.get(0, i);
+
+		return version;
+	}
+}
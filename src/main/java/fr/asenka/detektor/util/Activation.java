@@ -0,0 +1,134 @@
+package fr.asenka.detektor.util;
+
+import java.util.function.DoubleUnaryOperator;
+
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+
+/**
+ * Activation functions of the neurons.
+ *
+ * Each function has its own primitive kernel working directly on the storage of a matrix, so
+ * activating a layer neither boxes the values nor allocates a new matrix. The derivatives are
+ * expressed from the activation a = f(z), which is what the backpropagation keeps.
+ */
+public enum Activation {
+
+	SIGMOID {
+		@Override
+		public double value(double z) {
+			return 1d / (1d + Math.exp(-z));
+		}
+
+		@Override
+		public double derivative(double a) {
+			return a * (1d - a);
+		}
+
+		@Override
+		void apply(double[] data, int start, int stride, int length) {
+			for (int i = start, end = start + length * stride; i != end; i += stride)
+				data[i] = 1d / (1d + Math.exp(-data[i]));
+		}
+
+		@Override
+		void multiplyByDerivative(double[] delta, int deltaStart, int deltaStride, double[] a, int aStart, int aStride, int length) {
+			for (int i = 0; i < length; i++) {
+				double value = a[aStart + i * aStride];
+				delta[deltaStart + i * deltaStride] *= value * (1d - value);
+			}
+		}
+	},
+
+	TANH {
+		@Override
+		public double value(double z) {
+			return Math.tanh(z);
+		}
+
+		@Override
+		public double derivative(double a) {
+			return 1d - a * a;
+		}
+
+		@Override
+		void apply(double[] data, int start, int stride, int length) {
+			for (int i = start, end = start + length * stride; i != end; i += stride)
+				data[i] = Math.tanh(data[i]);
+		}
+
+		@Override
+		void multiplyByDerivative(double[] delta, int deltaStart, int deltaStride, double[] a, int aStart, int aStride, int length) {
+			for (int i = 0; i < length; i++) {
+				double value = a[aStart + i * aStride];
+				delta[deltaStart + i * deltaStride] *= 1d - value * value;
+			}
+		}
+	},
+
+	RELU {
+		@Override
+		public double value(double z) {
+			return z > 0d ? z : 0d;
+		}
+
+		@Override
+		public double derivative(double a) {
+			return a > 0d ? 1d : 0d;
+		}
+
+		@Override
+		void apply(double[] data, int start, int stride, int length) {
+			for (int i = start, end = start + length * stride; i != end; i += stride)
+				data[i] = data[i] > 0d ? data[i] : 0d;
+		}
+
+		@Override
+		void multiplyByDerivative(double[] delta, int deltaStart, int deltaStride, double[] a, int aStart, int aStride, int length) {
+			for (int i = 0; i < length; i++)
+				if (a[aStart + i * aStride] <= 0d)
+					delta[deltaStart + i * deltaStride] = 0d;
+		}
+	};
+
+	public abstract double value(double z);
+
+	public abstract double derivative(double a);
+
+	public DoubleUnaryOperator function() {
+		return this::value;
+	}
+
+	public DoubleUnaryOperator derivative() {
+		return this::derivative;
+	}
+
+	/**
+	 * Replaces each entry z of the matrix by f(z).
+	 */
+	public Matrix applyInPlace(Matrix z) {
+
+		for (int r = 0; r < z.rows(); r++)
+			apply(z.data, z.offset + r * z.rowStride, z.columnStride, z.columns());
+
+		return z;
+	}
+
+	/**
+	 * Multiplies each entry of delta by f'(z), computed from the activation a = f(z) of the same entry.
+	 */
+	public Matrix multiplyByDerivativeInPlace(Matrix delta, Matrix a) {
+
+		if (delta.rows() != a.rows() || delta.columns() != a.columns())
+			throw new MatrixDimensionMismatchException(a.rows(), a.columns(), delta.rows(), delta.columns());
+
+		for (int r = 0; r < delta.rows(); r++)
+			multiplyByDerivative(delta.data, delta.offset + r * delta.rowStride, delta.columnStride,
+					a.data, a.offset + r * a.rowStride, a.columnStride, delta.columns());
+
+		return delta;
+	}
+
+	abstract void apply(double[] data, int start, int stride, int length);
+
+	abstract void multiplyByDerivative(double[] delta, int deltaStart, int deltaStride, double[] a, int aStart, int aStride, int length);
+}
@@ -0,0 +1,82 @@
+package fr.asenka.detektor.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+
+/**
+ * Iterates once over a data set by batches of rows. Without a random generator, each batch holds
+ * views on consecutive rows of the features and the labels, so no data is copied.
+ *
+ * When a random generator is given, the indexes of the rows are shuffled when the iterator is
+ * created, i.e. at the beginning of each pass over the data, and each batch gathers its rows of
+ * both matrices (see {@link FeatureMatrix#gatherRows(int[], int, int)}). The matrices of the caller
+ * are never modified, so they stay aligned with any other view on the data set.
+ */
+public class BatchIterator implements Iterator<Examples> {
+
+	private final FeatureMatrix features;
+
+	private final Matrix labels;
+
+	private final int batchSize;
+
+	private final int[] order; // shuffled indexes of the rows, null to iterate in order
+
+	private int nextRow = 0;
+
+	public BatchIterator(FeatureMatrix features, Matrix labels, int batchSize, Random random) {
+
+		if (features.rows() != labels.rows())
+			throw new DimensionMismatchException(labels.rows(), features.rows());
+		if (batchSize < 1)
+			throw new NotStrictlyPositiveException(batchSize);
+
+		this.features = features;
+		this.labels = labels;
+		this.batchSize = batchSize;
+		this.order = random == null ? null : shuffle(features.rows(), random);
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nextRow < features.rows();
+	}
+
+	@Override
+	public Examples next() {
+
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		int startRow = nextRow;
+		int endRow = Math.min(startRow + batchSize, features.rows()) - 1;
+		nextRow = endRow + 1;
+
+		if (order == null)
+			return new Examples(features.rowsView(startRow, endRow), labels.rowsView(startRow, endRow));
+
+		int length = endRow - startRow + 1;
+		return new Examples(features.gatherRows(order, startRow, length), labels.gatherRows(order, startRow, length));
+	}
+
+	private static int[] shuffle(int rows, Random random) {
+
+		int[] order = new int[rows];
+
+		for (int i = 0; i < rows; i++)
+			order[i] = i;
+
+		// Fisher-Yates
+		for (int i = rows - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int row = order[i];
+			order[i] = order[j];
+			order[j] = row;
+		}
+		return order;
+	}
+}
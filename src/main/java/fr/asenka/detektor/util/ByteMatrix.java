@@ -0,0 +1,217 @@
+package fr.asenka.detektor.util;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+
+/**
+ * Matrix of quantized features: unsigned bytes (e.g. the raw pixels of the images) and a scale
+ * factor, the value of the entry (r, c) being {@code scale * data[offset + r * rowStride + c]}. It
+ * takes 8 times less memory than a {@link Matrix}; the values are dequantized on the fly when the
+ * products widen them to doubles.
+ */
+public final class ByteMatrix implements FeatureMatrix {
+
+	private static final int LEVELS = 255;
+
+	final byte[] data;
+	final int offset;
+	final int rowStride;
+	private final int rows;
+	private final int columns;
+	private final double scale;
+
+	private ByteMatrix(byte[] data, int offset, int rowStride, int rows, int columns, double scale) {
+		this.data = data;
+		this.offset = offset;
+		this.rowStride = rowStride;
+		this.rows = rows;
+		this.columns = columns;
+		this.scale = scale;
+	}
+
+	public ByteMatrix(int rows, int columns, double scale) {
+		this(allocate(rows, columns), 0, columns, rows, columns, scale);
+	}
+
+	/**
+	 * Quantizes non-negative features on 256 levels, the largest one being mapped to 255.
+	 */
+	public ByteMatrix(FeatureMatrix matrix) {
+		this(matrix.rows(), matrix.columns(), scaleOf(matrix));
+
+		final double[] row = new double[columns];
+
+		for (int r = 0; r < rows; r++) {
+			matrix.readRow(r, 0, columns, row, 0);
+			for (int c = 0; c < columns; c++)
+				data[r * columns + c] = (byte) Math.round(row[c] / scale);
+		}
+	}
+
+	@Override
+	public int rows() {
+		return rows;
+	}
+
+	@Override
+	public int columns() {
+		return columns;
+	}
+
+	public double getScale() {
+		return scale;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		return (data[offset + row * rowStride + column] & 0xFF) * scale;
+	}
+
+	/**
+	 * @return the quantized value (between 0 and 255) of the entry
+	 */
+	public int getLevel(int row, int column) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		return data[offset + row * rowStride + column] & 0xFF;
+	}
+
+	public void setLevel(int row, int column, int level) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		if (level < 0 || level > LEVELS)
+			throw new OutOfRangeException(level, 0, LEVELS);
+
+		data[offset + row * rowStride + column] = (byte) level;
+	}
+
+	@Override
+	public ByteMatrix rowsView(int startRow, int endRow) {
+		checkRowIndex(startRow);
+		checkRowIndex(endRow);
+		if (endRow < startRow)
+			throw new NumberIsTooSmallException(LocalizedFormats.INITIAL_ROW_AFTER_FINAL_ROW, endRow, startRow, false);
+
+		return new ByteMatrix(data, offset + startRow * rowStride, rowStride, endRow - startRow + 1, columns, scale);
+	}
+
+	/**
+	 * @return a copy of the given rows
+	 */
+	@Override
+	public ByteMatrix gatherRows(int[] indexes, int offset, int length) {
+
+		ByteMatrix result = new ByteMatrix(length, columns, scale);
+
+		for (int r = 0; r < length; r++) {
+			checkRowIndex(indexes[offset + r]);
+			System.arraycopy(data, this.offset + indexes[offset + r] * rowStride, result.data, r * columns, columns);
+		}
+		return result;
+	}
+
+	@Override
+	public Matrix multiplyTransposed(Matrix b, Matrix dest) {
+
+		if (columns != b.columns())
+			throw new DimensionMismatchException(b.columns(), columns);
+		checkDestination(dest, rows, b.rows());
+
+		if (dest.data == b.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		if (dest.columnStride == 1)
+			FeatureGemm.multiplyTransposed(this, b, dest);
+		else
+			dest.copyFrom(multiplyTransposed(b, new Matrix(rows, b.rows())));
+
+		return dest;
+	}
+
+	@Override
+	public Matrix premultiplyTransposed(Matrix a, Matrix dest) {
+
+		if (a.rows() != rows)
+			throw new DimensionMismatchException(rows, a.rows());
+		checkDestination(dest, a.columns(), columns);
+
+		if (dest.data == a.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		if (dest.columnStride == 1)
+			FeatureGemm.premultiplyTransposed(a, this, dest);
+		else
+			dest.copyFrom(premultiplyTransposed(a, new Matrix(a.columns(), columns)));
+
+		return dest;
+	}
+
+	@Override
+	public Matrix toMatrix() {
+
+		Matrix result = new Matrix(rows, columns);
+
+		for (int r = 0; r < rows; r++)
+			readRow(r, 0, columns, result.data, r * columns);
+
+		return result;
+	}
+
+	@Override
+	public void readRow(int row, int column, int length, double[] destination, int destinationOffset) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		checkColumnIndex(column + length - 1);
+
+		for (int c = 0, i = offset + row * rowStride + column; c < length; c++)
+			destination[destinationOffset + c] = (data[i + c] & 0xFF) * scale;
+	}
+
+	private void checkRowIndex(int row) {
+		if (row < 0 || row >= rows)
+			throw new OutOfRangeException(LocalizedFormats.ROW_INDEX, row, 0, rows - 1);
+	}
+
+	private void checkColumnIndex(int column) {
+		if (column < 0 || column >= columns)
+			throw new OutOfRangeException(LocalizedFormats.COLUMN_INDEX, column, 0, columns - 1);
+	}
+
+	private static void checkDestination(Matrix dest, int rows, int columns) {
+		if (dest.rows() != rows || dest.columns() != columns)
+			throw new MatrixDimensionMismatchException(dest.rows(), dest.columns(), rows, columns);
+	}
+
+	private static double scaleOf(FeatureMatrix matrix) {
+
+		final double[] row = new double[matrix.columns()];
+		double max = 0d;
+
+		for (int r = 0; r < matrix.rows(); r++) {
+			matrix.readRow(r, 0, row.length, row, 0);
+			for (double value : row) {
+				if (value < 0d)
+					throw new NumberIsTooSmallException(value, 0d, true);
+				max = Math.max(max, value);
+			}
+		}
+
+		return max == 0d ? 1d : max / LEVELS;
+	}
+
+	private static final byte[] allocate(int rows, int columns) {
+
+		if (rows < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, rows);
+		if (columns < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, columns);
+
+		return new byte[Math.multiplyExact(rows, columns)];
+	}
+}
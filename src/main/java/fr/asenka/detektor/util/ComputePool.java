@@ -0,0 +1,150 @@
+package fr.asenka.detektor.util;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+
+/**
+ * Thread pool shared by the parallel matrix kernels.
+ *
+ * The default parallelism is the number of available processors and can be overridden with the
+ * {@code detektor.parallelism} system property, {@link #setParallelism(int)} or by plugging an
+ * existing pool with {@link #setPool(ForkJoinPool)}. A parallelism of 1 runs every kernel in the
+ * calling thread.
+ *
+ * The parallelism can be changed while kernels are running: a kernel keeps the pool it acquired
+ * until it returns, and a replaced pool created here is only shut down once its last kernel has
+ * returned.
+ */
+public final class ComputePool {
+
+	private static final String PARALLELISM_PROPERTY = "detektor.parallelism";
+
+	private static volatile ForkJoinPool pool;
+
+	private static boolean ownedPool;
+
+	private static final Map<ForkJoinPool, Integer> users = new IdentityHashMap<>(); // kernels running in each pool
+
+	private static final Set<ForkJoinPool> retired = Collections.newSetFromMap(new IdentityHashMap<>()); // shut down after their last kernel
+
+	static {
+		setParallelism(Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()));
+	}
+
+	private ComputePool() {
+	}
+
+	public static int getParallelism() {
+		ForkJoinPool current = pool;
+		return current == null ? 1 : current.getParallelism();
+	}
+
+	public static synchronized void setParallelism(int parallelism) {
+
+		if (parallelism < 1)
+			throw new NotStrictlyPositiveException(parallelism);
+
+		replace(parallelism == 1 ? null : new ForkJoinPool(parallelism), true);
+	}
+
+	public static synchronized void setPool(ForkJoinPool forkJoinPool) {
+		replace(forkJoinPool, false);
+	}
+
+	/**
+	 * Runs the action on consecutive ranges of at most grain indexes covering [start, end), in
+	 * parallel in the pool (or in the calling thread when the parallelism is 1).
+	 */
+	public static void forEachRange(int start, int end, int grain, RangeAction action) {
+
+		if (grain < 1)
+			throw new NotStrictlyPositiveException(grain);
+
+		ForkJoinPool current = end - start <= grain ? null : acquire();
+
+		if (current == null) {
+			for (int i = start; i < end; i += grain)
+				action.run(i, Math.min(i + grain, end));
+			return;
+		}
+
+		try {
+			current.invoke(new Range(start, end, grain, action));
+		} finally {
+			release(current);
+		}
+	}
+
+	/**
+	 * @return the pool to run a kernel in, to be given back to {@link #release(ForkJoinPool)} once the
+	 *         kernel returns, or null when the kernel must run in the calling thread
+	 */
+	static synchronized ForkJoinPool acquire() {
+
+		if (pool != null)
+			users.merge(pool, 1, Integer::sum);
+
+		return pool;
+	}
+
+	static synchronized void release(ForkJoinPool forkJoinPool) {
+
+		if (users.merge(forkJoinPool, -1, Integer::sum) == 0) {
+			users.remove(forkJoinPool);
+
+			if (retired.remove(forkJoinPool))
+				forkJoinPool.shutdown();
+		}
+	}
+
+	@FunctionalInterface
+	public interface RangeAction {
+		void run(int start, int end);
+	}
+
+	private static void replace(ForkJoinPool forkJoinPool, boolean owned) {
+
+		if (pool != null && ownedPool) {
+			if (users.containsKey(pool))
+				retired.add(pool);
+			else
+				pool.shutdown();
+		}
+
+		pool = forkJoinPool;
+		ownedPool = owned;
+	}
+
+	private static final class Range extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int start, end, grain;
+		private final RangeAction action;
+
+		private Range(int start, int end, int grain, RangeAction action) {
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+			this.action = action;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (end - start <= grain) {
+				action.run(start, end);
+			} else {
+				// Split on a multiple of grain so that the ranges are the same as in the calling thread
+				int middle = start + Math.max(1, (end - start) / grain / 2) * grain;
+				invokeAll(new Range(start, middle, grain, action), new Range(middle, end, grain, action));
+			}
+		}
+	}
+}
@@ -1,8 +1,10 @@
 package fr.asenka.detektor.util;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Random;
 
 import com.jmatio.io.MatFileWriter;
 import com.jmatio.types.MLArray;
@@ -10,11 +12,21 @@ import com.jmatio.types.MLDouble;
 
 public abstract class DataSet {
 
-	protected Matrix X;
+	protected FeatureMatrix X;
 	
 	protected Matrix y;
 	
+	protected final FeatureStorage storage;
+	
 	protected DataSet() {
+		this(FeatureStorage.DOUBLE);
+	}
+	
+	/**
+	 * @param storage the format of the features, see {@link #getFeatures()}
+	 */
+	protected DataSet(FeatureStorage storage) {
+		this.storage = storage;
 		loadData();
 	}
 	
@@ -22,7 +34,38 @@ public abstract class DataSet {
 	
 	public abstract int getImageSize();
 	
+	/**
+	 * Sets X and y from the cache when it holds these sources preprocessed with the same options,
+	 * otherwise loads them with the loader and stores them in the cache for the next runs.
+	 */
+	protected final void loadCached(String name, String options, Loader loader, Path... sources) throws IOException {
+		
+		DataSetCache cache = new DataSetCache();
+		long key = DataSetCache.key(options, sources);
+		Examples cached = cache.load(name, key, storage);
+		
+		if (cached != null) {
+			X = cached.getFeatures();
+			y = cached.getLabels();
+			return;
+		}
+		loader.load();
+		
+		try {
+			cache.store(name, key, storage, X, y);
+		} catch (IOException e) {
+			System.err.println("Could not cache the data set: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return the features as a double matrix (a copy when they are stored in another format)
+	 */
 	public Matrix getImages() {
+		return X.toMatrix();
+	}
+	
+	public FeatureMatrix getFeatures() {
 		return X;
 	}
 
@@ -30,6 +73,23 @@ public abstract class DataSet {
 		return y;
 	}
 	
+	/**
+	 * @return views of the features and the labels of the examples from startRow to endRow
+	 *         (inclusive), e.g. to split the data set in training and test sets without copying it
+	 */
+	public Examples examples(int startRow, int endRow) {
+		return new Examples(X.rowsView(startRow, endRow), y.rowsView(startRow, endRow));
+	}
+	
+	public BatchIterator batches(int batchSize, Random random) {
+		return new BatchIterator(X, y, batchSize, random);
+	}
+	
+	@FunctionalInterface
+	protected interface Loader {
+		void load() throws IOException;
+	}
+	
 	public static void saveWeights(Matrix theta1, Matrix theta2) throws IOException {
 		
 		MatFileWriter writer = new MatFileWriter();
@@ -0,0 +1,369 @@
+package fr.asenka.detektor.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+
+/**
+ * Binary cache of preprocessed data sets, so that only the first run pays for the decompression
+ * and the preprocessing of the source files.
+ *
+ * A cache file holds a header (magic number, format version, key, layout, dimensions) followed by
+ * the features and the labels as unsigned bytes. The key is a checksum of the source files and of
+ * the preprocessing options: when any of them changes the file is rebuilt. The features are stored
+ * in the layout of their storage format, each layout in its own file, so that a warm run loads
+ * exactly the features a cold run decodes (doubles are never downcast to floats) by bulk reads:
+ * little-endian doubles or floats for the dense formats, the levels and their scale for
+ * {@link FeatureStorage#UINT8}, the arrays of the non-zero entries for
+ * {@link FeatureStorage#SPARSE}.
+ *
+ * The files are written in the directory given by the {@code detektor.cache.dir} system property
+ * (build/dataset-cache by default) and memory-mapped when they are read back: in the
+ * {@link FeatureStorage#OFF_HEAP} format, the features are used straight from the mapping.
+ */
+public final class DataSetCache {
+
+	private static final String DIRECTORY_PROPERTY = "detektor.cache.dir";
+
+	private static final int MAGIC_NUMBER = 0x444B4443;
+
+	private static final int VERSION = 3;
+
+	// magic number, version, key, layout, rows, columns, non-zero entries (sparse), scale (levels)
+	static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4 + 4 + 8;
+
+	private static final int MAPPING_SIZE = 1 << 30; // bytes mapped at once
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Path directory;
+
+	public DataSetCache() {
+		this(Paths.get(System.getProperty(DIRECTORY_PROPERTY, "build/dataset-cache")));
+	}
+
+	public DataSetCache(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Computes the key of a data set from the content of its source files and its preprocessing
+	 * options.
+	 */
+	public static long key(String options, Path... sources) throws IOException {
+
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[BUFFER_SIZE];
+
+		for (Path source : sources)
+			try (InputStream input = Files.newInputStream(source)) {
+				int n;
+				while ((n = input.read(buffer)) > 0)
+					crc.update(buffer, 0, n);
+			}
+
+		crc.update(options.getBytes(StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+
+	/**
+	 * @return the features (in the given format) and the labels stored under this name, or null when
+	 *         there are none or when they were built with another key or format version
+	 */
+	public Examples load(String name, long key, FeatureStorage storage) throws IOException {
+
+		final Layout layout = Layout.of(storage);
+		Path file = file(name, layout);
+
+		if (!Files.isRegularFile(file))
+			return null;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+			if (channel.size() < HEADER_SIZE)
+				return null;
+
+			MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (header.getInt() != MAGIC_NUMBER || header.getInt() != VERSION || header.getLong() != key || header.getInt() != layout.ordinal())
+				return null;
+
+			int rows = header.getInt();
+			int columns = header.getInt();
+			int nonZeros = header.getInt();
+			double scale = header.getDouble();
+
+			if (rows < 1 || columns < 1 || nonZeros < 0)
+				return null;
+
+			long labelsStart = HEADER_SIZE + layout.size(rows, columns, nonZeros);
+
+			if (channel.size() != labelsStart + rows)
+				return null;
+
+			FeatureMatrix features;
+
+			switch (layout) {
+			case FLOATS:
+				// Mapped by chunks (a mapping holds at most 2 GB); in the OFF_HEAP format the floats
+				// are used in place, without being read
+				features = storage.convert(OffHeapMatrix.map(channel, MapMode.READ_ONLY, HEADER_SIZE, rows, columns));
+				break;
+			case DOUBLES:
+				Matrix matrix = new Matrix(rows, columns);
+				read(channel, HEADER_SIZE, matrix.data);
+				features = matrix;
+				break;
+			case LEVELS:
+				ByteMatrix levels = new ByteMatrix(rows, columns, scale);
+				read(channel, HEADER_SIZE, levels.data);
+				features = levels;
+				break;
+			default:
+				features = readSparse(channel, rows, columns, nonZeros);
+				if (features == null)
+					return null;
+			}
+
+			Matrix labels = new Matrix(rows, 1);
+			MappedByteBuffer labelBytes = channel.map(MapMode.READ_ONLY, labelsStart, rows);
+			for (int i = 0; i < rows; i++)
+				labels.data[i] = labelBytes.get(i) & 0xFF;
+
+			return new Examples(features, labels);
+		}
+	}
+
+	/**
+	 * Stores the features, in the layout of the given format, and the labels (integers between 0
+	 * and 255) under this name. The file is written next to its final location and then moved, so
+	 * that an interrupted run never leaves a truncated cache behind.
+	 */
+	public void store(String name, long key, FeatureStorage storage, FeatureMatrix features, Matrix labels) throws IOException {
+
+		final int rows = features.rows(), columns = features.columns();
+		final Layout layout = Layout.of(storage);
+		final FeatureMatrix stored = layout == Layout.LEVELS || layout == Layout.SPARSE ? storage.convert(features) : features;
+		final int nonZeros = layout == Layout.SPARSE ? Math.toIntExact(((SparseMatrix) stored).nonZeros()) : 0;
+		final double scale = layout == Layout.LEVELS ? ((ByteMatrix) stored).getScale() : 1d;
+
+		if (labels.rows() != rows || labels.columns() != 1)
+			throw new MatrixDimensionMismatchException(labels.rows(), labels.columns(), rows, 1);
+
+		Files.createDirectories(directory);
+		Path file = file(name, layout);
+		Path temporary = Files.createTempFile(directory, name, ".tmp");
+
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC_NUMBER).putInt(VERSION).putLong(key).putInt(layout.ordinal()).putInt(rows).putInt(columns).putInt(nonZeros).putDouble(scale);
+
+			if (layout == Layout.LEVELS)
+				writeLevels((ByteMatrix) stored, buffer, channel);
+			else if (layout == Layout.SPARSE)
+				writeSparse((SparseMatrix) stored, buffer, channel);
+			else
+				writeValues(features, layout == Layout.FLOATS, buffer, channel);
+
+			for (int r = 0; r < rows; r++) {
+				double label = labels.get(r, 0);
+				if (label < 0 || label > 255 || label != Math.rint(label))
+					throw new OutOfRangeException(label, 0, 255);
+				if (!buffer.hasRemaining())
+					flush(buffer, channel);
+				buffer.put((byte) label);
+			}
+			flush(buffer, channel);
+
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Path file(String name, Layout layout) {
+		return directory.resolve(name + layout.extension + ".bin");
+	}
+
+	private static void writeValues(FeatureMatrix features, boolean floats, ByteBuffer buffer, FileChannel channel) throws IOException {
+
+		final int columns = features.columns();
+		final double[] row = new double[columns];
+
+		for (int r = 0; r < features.rows(); r++) {
+			features.readRow(r, 0, columns, row, 0);
+			for (int c = 0; c < columns; c++) {
+				if (buffer.remaining() < Double.BYTES)
+					flush(buffer, channel);
+				if (floats)
+					buffer.putFloat((float) row[c]);
+				else
+					buffer.putDouble(row[c]);
+			}
+		}
+	}
+
+	private static void writeLevels(ByteMatrix levels, ByteBuffer buffer, FileChannel channel) throws IOException {
+
+		for (int r = 0; r < levels.rows(); r++)
+			for (int i = levels.offset + r * levels.rowStride, end = i + levels.columns(); i < end;) {
+				if (!buffer.hasRemaining())
+					flush(buffer, channel);
+				int length = Math.min(buffer.remaining(), end - i);
+				buffer.put(levels.data, i, length);
+				i += length;
+			}
+	}
+
+	/**
+	 * Writes the values of the non-zero entries, then their columns and the end of each row in
+	 * these arrays: the rows of the matrix (e.g. gathered) are stored consecutively
+	 */
+	private static void writeSparse(SparseMatrix sparse, ByteBuffer buffer, FileChannel channel) throws IOException {
+
+		final int first = sparse.first, last = first + sparse.rows();
+
+		for (int r = first; r < last; r++)
+			for (int i = sparse.starts[r]; i < sparse.ends[r]; i++) {
+				if (buffer.remaining() < Double.BYTES)
+					flush(buffer, channel);
+				buffer.putDouble(sparse.values[i]);
+			}
+
+		for (int r = first; r < last; r++)
+			for (int i = sparse.starts[r]; i < sparse.ends[r]; i++) {
+				if (buffer.remaining() < Integer.BYTES)
+					flush(buffer, channel);
+				buffer.putInt(sparse.columnIndexes[i]);
+			}
+
+		for (int r = first, end = 0; r < last; r++) {
+			end += sparse.ends[r] - sparse.starts[r];
+			if (buffer.remaining() < Integer.BYTES)
+				flush(buffer, channel);
+			buffer.putInt(end);
+		}
+	}
+
+	/**
+	 * @return the sparse matrix, or null when the ends of its rows or its columns are out of range
+	 */
+	private static SparseMatrix readSparse(FileChannel channel, int rows, int columns, int nonZeros) throws IOException {
+
+		final double[] values = new double[nonZeros];
+		final int[] columnIndexes = new int[nonZeros];
+		final int[] ends = new int[rows];
+
+		read(channel, HEADER_SIZE, values);
+		read(channel, HEADER_SIZE + 8L * nonZeros, columnIndexes);
+		read(channel, HEADER_SIZE + 12L * nonZeros, ends);
+
+		for (int r = 0, start = 0; r < rows; start = ends[r++])
+			if (ends[r] < start || ends[r] > nonZeros)
+				return null;
+
+		for (int column : columnIndexes)
+			if (column < 0 || column >= columns)
+				return null;
+
+		return SparseMatrix.of(values, columnIndexes, ends, columns);
+	}
+
+	private static void read(FileChannel channel, long position, double[] values) throws IOException {
+
+		final int step = MAPPING_SIZE / Double.BYTES;
+
+		for (int i = 0; i < values.length; i += step) {
+			int length = Math.min(step, values.length - i);
+			channel.map(MapMode.READ_ONLY, position + 8L * i, 8L * length).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(values, i, length);
+		}
+	}
+
+	private static void read(FileChannel channel, long position, int[] values) throws IOException {
+
+		final int step = MAPPING_SIZE / Integer.BYTES;
+
+		for (int i = 0; i < values.length; i += step) {
+			int length = Math.min(step, values.length - i);
+			channel.map(MapMode.READ_ONLY, position + 4L * i, 4L * length).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(values, i, length);
+		}
+	}
+
+	private static void read(FileChannel channel, long position, byte[] values) throws IOException {
+
+		for (int i = 0; i < values.length; i += MAPPING_SIZE) {
+			int length = Math.min(MAPPING_SIZE, values.length - i);
+			channel.map(MapMode.READ_ONLY, position + i, length).get(values, i, length);
+		}
+	}
+
+	private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+
+		buffer.flip();
+
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+
+		buffer.clear();
+	}
+
+	/**
+	 * Layout of the features in a cache file
+	 */
+	private enum Layout {
+
+		DOUBLES(".f64", Double.BYTES),
+
+		FLOATS(".f32", Float.BYTES),
+
+		LEVELS(".u8", 1),
+
+		SPARSE(".csr", 0);
+
+		private final String extension;
+
+		private final int bytesPerFeature; // of the dense layouts
+
+		private Layout(String extension, int bytesPerFeature) {
+			this.extension = extension;
+			this.bytesPerFeature = bytesPerFeature;
+		}
+
+		static Layout of(FeatureStorage storage) {
+			switch (storage) {
+			case DOUBLE:
+				return DOUBLES;
+			case UINT8:
+				return LEVELS;
+			case SPARSE:
+				return SPARSE;
+			default:
+				return FLOATS;
+			}
+		}
+
+		/**
+		 * @return the size (in bytes) of the features
+		 */
+		long size(int rows, int columns, int nonZeros) {
+			return this == SPARSE ? 12L * nonZeros + 4L * rows : (long) bytesPerFeature * rows * columns;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package fr.asenka.detektor.util;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+
+/**
+ * Features and labels of a set of examples, one example per row.
+ */
+public final class Examples {
+
+	private final FeatureMatrix features;
+
+	private final Matrix labels;
+
+	public Examples(FeatureMatrix features, Matrix labels) {
+
+		if (features.rows() != labels.rows())
+			throw new DimensionMismatchException(labels.rows(), features.rows());
+
+		this.features = features;
+		this.labels = labels;
+	}
+
+	public FeatureMatrix getFeatures() {
+		return features;
+	}
+
+	public Matrix getLabels() {
+		return labels;
+	}
+
+	public int size() {
+		return features.rows();
+	}
+}
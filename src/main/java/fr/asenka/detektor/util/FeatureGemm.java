@@ -0,0 +1,241 @@
+package fr.asenka.detektor.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Products of a compact matrix of features (floats, bytes...) with double matrices (weights or
+ * errors).
+ *
+ * The features are the large operand of these products: they are read once in their own format
+ * and widened (and dequantized) to doubles by small panels that stay in the L1 cache, so the
+ * inner loops only work on doubles and every product is accumulated in double. The work is split
+ * in blocks of rows (c = a.b<sup>T</sup>) or of columns (c = a<sup>T</sup>.b) across the
+ * {@link ComputePool}, so that no partial result has to be reduced.
+ */
+final class FeatureGemm {
+
+	private static final int MR = 4;
+
+	private static final int KC = 128;
+
+	private static final int NC = 128;
+
+	private static final int MIN_BLOCK_ROWS = 64;
+
+	private static final int MIN_BLOCK_COLUMNS = 128;
+
+	private static final long SEQUENTIAL_THRESHOLD = 1L << 17;
+
+	private static final Scratch PACKED = new Scratch();
+
+	private static final ThreadLocal<double[]> ROWS_PANEL = ThreadLocal.withInitial(() -> new double[MR * KC]);
+
+	private static final ThreadLocal<double[]> COLUMNS_PANEL = ThreadLocal.withInitial(() -> new double[MR * NC]);
+
+	private FeatureGemm() {
+	}
+
+	/**
+	 * c = a . b<sup>T</sup>; the columns of c must be contiguous
+	 */
+	static void multiplyTransposed(FeatureMatrix a, Matrix b, Matrix c) {
+
+		final int m = a.rows(), n = a.columns(), p = b.rows();
+		final double[] packed = PACKED.acquire(n * p);
+
+		// b is small (the weights): its transpose is packed once so that the kernel streams its rows
+		for (int j = 0; j < p; j++)
+			for (int q = 0, i = b.offset + j * b.rowStride; q < n; q++, i += b.columnStride)
+				packed[q * p + j] = b.data[i];
+
+		ForkJoinPool pool = (long) m * n * p < SEQUENTIAL_THRESHOLD ? null : ComputePool.acquire();
+
+		if (pool == null) {
+			rowsKernel(a, n, packed, p, c, 0, m);
+		} else {
+			try {
+				pool.invoke(new Rows(a, n, packed, p, c, 0, m, Math.max(MIN_BLOCK_ROWS, m / (4 * pool.getParallelism()))));
+			} finally {
+				ComputePool.release(pool);
+			}
+		}
+
+		PACKED.release(packed);
+	}
+
+	/**
+	 * c = a<sup>T</sup> . b; the columns of c must be contiguous
+	 */
+	static void premultiplyTransposed(Matrix a, FeatureMatrix b, Matrix c) {
+
+		final int m = b.rows(), n = b.columns(), p = a.columns();
+
+		c.fill(0d);
+		ForkJoinPool pool = (long) m * n * p < SEQUENTIAL_THRESHOLD ? null : ComputePool.acquire();
+
+		if (pool == null) {
+			columnsKernel(a, b, m, c, 0, n);
+		} else {
+			try {
+				pool.invoke(new Columns(a, b, m, c, 0, n, Math.max(MIN_BLOCK_COLUMNS, n / (4 * pool.getParallelism()))));
+			} finally {
+				ComputePool.release(pool);
+			}
+		}
+	}
+
+	private static void rowsKernel(FeatureMatrix a, int n, double[] packed, int p, Matrix c, int r0, int r1) {
+
+		final double[] cd = c.data, panel = ROWS_PANEL.get();
+		final int crs = c.rowStride;
+
+		for (int r = r0; r < r1; r++)
+			for (int j = 0, ci = c.offset + r * crs; j < p; j++)
+				cd[ci + j] = 0d;
+
+		// Same micro-kernel as Gemm: MR rows of c are updated at once from each row of a block of
+		// the packed b, the block staying in the L1 cache for all the rows
+		for (int pc = 0; pc < n; pc += KC) {
+			final int kc = Math.min(KC, n - pc);
+
+			int r = r0;
+			for (; r + MR <= r1; r += MR) {
+				for (int s = 0; s < MR; s++)
+					a.readRow(r + s, pc, kc, panel, s * KC);
+
+				final int ci0 = c.offset + r * crs, ci1 = ci0 + crs, ci2 = ci1 + crs, ci3 = ci2 + crs;
+
+				for (int q = 0; q < kc; q++) {
+					final double v0 = panel[q], v1 = panel[KC + q], v2 = panel[2 * KC + q], v3 = panel[3 * KC + q];
+					final int bq = (pc + q) * p;
+
+					for (int j = 0; j < p; j++) {
+						final double bv = packed[bq + j];
+						cd[ci0 + j] += v0 * bv;
+						cd[ci1 + j] += v1 * bv;
+						cd[ci2 + j] += v2 * bv;
+						cd[ci3 + j] += v3 * bv;
+					}
+				}
+			}
+			for (; r < r1; r++) {
+				a.readRow(r, pc, kc, panel, 0);
+				final int ci0 = c.offset + r * crs;
+
+				for (int q = 0; q < kc; q++) {
+					final double v0 = panel[q];
+					final int bq = (pc + q) * p;
+
+					for (int j = 0; j < p; j++)
+						cd[ci0 + j] += v0 * packed[bq + j];
+				}
+			}
+		}
+	}
+
+	private static void columnsKernel(Matrix a, FeatureMatrix b, int m, Matrix c, int c0, int c1) {
+
+		final double[] ad = a.data, cd = c.data, panel = COLUMNS_PANEL.get();
+		final int p = a.columns(), ars = a.rowStride, acs = a.columnStride;
+
+		// Each row of b updates every row of c: MR rows at once divide the loads and stores of c by
+		// MR, and the columns are processed by blocks so that the updated block of c stays in the L1
+		// cache
+		for (int jc = c0; jc < c1; jc += NC) {
+			final int nc = Math.min(NC, c1 - jc);
+
+			int r = 0;
+			for (; r + MR <= m; r += MR) {
+				for (int s = 0; s < MR; s++)
+					b.readRow(r + s, jc, nc, panel, s * NC);
+
+				for (int i = 0; i < p; i++) {
+					final int ai = a.offset + r * ars + i * acs;
+					final double v0 = ad[ai], v1 = ad[ai + ars], v2 = ad[ai + 2 * ars], v3 = ad[ai + 3 * ars];
+					final int ci = c.offset + i * c.rowStride + jc;
+
+					for (int q = 0; q < nc; q++)
+						cd[ci + q] += v0 * panel[q] + v1 * panel[NC + q] + v2 * panel[2 * NC + q] + v3 * panel[3 * NC + q];
+				}
+			}
+			for (; r < m; r++) {
+				b.readRow(r, jc, nc, panel, 0);
+
+				for (int i = 0; i < p; i++) {
+					final double v0 = ad[a.offset + r * ars + i * acs];
+					final int ci = c.offset + i * c.rowStride + jc;
+
+					for (int q = 0; q < nc; q++)
+						cd[ci + q] += v0 * panel[q];
+				}
+			}
+		}
+	}
+
+	private static final class Rows extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FeatureMatrix a;
+		private final int n;
+		private final double[] packed;
+		private final int p;
+		private final Matrix c;
+		private final int r0, r1, grain;
+
+		private Rows(FeatureMatrix a, int n, double[] packed, int p, Matrix c, int r0, int r1, int grain) {
+			this.a = a;
+			this.n = n;
+			this.packed = packed;
+			this.p = p;
+			this.c = c;
+			this.r0 = r0;
+			this.r1 = r1;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (r1 - r0 <= grain) {
+				rowsKernel(a, n, packed, p, c, r0, r1);
+			} else {
+				int middle = r0 + ((r1 - r0) / 2 / MR) * MR;
+				invokeAll(new Rows(a, n, packed, p, c, r0, middle, grain), new Rows(a, n, packed, p, c, middle, r1, grain));
+			}
+		}
+	}
+
+	private static final class Columns extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Matrix a;
+		private final FeatureMatrix b;
+		private final int m;
+		private final Matrix c;
+		private final int c0, c1, grain;
+
+		private Columns(Matrix a, FeatureMatrix b, int m, Matrix c, int c0, int c1, int grain) {
+			this.a = a;
+			this.b = b;
+			this.m = m;
+			this.c = c;
+			this.c0 = c0;
+			this.c1 = c1;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (c1 - c0 <= grain) {
+				columnsKernel(a, b, m, c, c0, c1);
+			} else {
+				int middle = c0 + (c1 - c0) / 2;
+				invokeAll(new Columns(a, b, m, c, c0, middle, grain), new Columns(a, b, m, c, middle, c1, grain));
+			}
+		}
+	}
+}
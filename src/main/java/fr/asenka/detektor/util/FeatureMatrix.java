@@ -0,0 +1,50 @@
+package fr.asenka.detektor.util;
+
+/**
+ * Read-mostly matrix of features (one example per row), whatever its storage.
+ *
+ * The data sets can be very large, so the features may be stored in a more compact format than
+ * the doubles of {@link Matrix} (see {@link FeatureStorage}). The network only needs the two
+ * products below on them; the weights, the activations and the gradients are always double
+ * matrices.
+ */
+public interface FeatureMatrix {
+
+	int rows();
+
+	int columns();
+
+	double get(int row, int column);
+
+	/**
+	 * Copies length entries of a row, from the given column, into destination (e.g. to widen a
+	 * panel of features to doubles in a kernel)
+	 */
+	void readRow(int row, int column, int length, double[] destination, int offset);
+
+	/**
+	 * @return a view of the rows from startRow to endRow (inclusive) sharing the storage of this matrix
+	 */
+	FeatureMatrix rowsView(int startRow, int endRow);
+
+	/**
+	 * @return the rows indexes[offset] to indexes[offset + length - 1], in this order, in a matrix of
+	 *         the same storage (e.g. a shuffled batch of examples)
+	 */
+	FeatureMatrix gatherRows(int[] indexes, int offset, int length);
+
+	/**
+	 * dest = this . b<sup>T</sup>; dest must not share its storage with b
+	 */
+	Matrix multiplyTransposed(Matrix b, Matrix dest);
+
+	/**
+	 * dest = a<sup>T</sup> . this; dest must not share its storage with a
+	 */
+	Matrix premultiplyTransposed(Matrix a, Matrix dest);
+
+	/**
+	 * @return this matrix as a double matrix (a copy unless it already is one)
+	 */
+	Matrix toMatrix();
+}
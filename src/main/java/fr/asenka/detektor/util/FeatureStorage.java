@@ -0,0 +1,92 @@
+package fr.asenka.detektor.util;
+
+/**
+ * Storage format of the features of a data set or of a network.
+ */
+public enum FeatureStorage {
+
+	/**
+	 * {@link Matrix}, 8 bytes per feature
+	 */
+	DOUBLE {
+		@Override
+		public FeatureMatrix allocate(int rows, int columns) {
+			return new Matrix(rows, columns);
+		}
+
+		@Override
+		public FeatureMatrix convert(FeatureMatrix features) {
+			return features.toMatrix();
+		}
+	},
+
+	/**
+	 * {@link FloatMatrix}, 4 bytes per feature: half the memory and the bandwidth of the products
+	 */
+	FLOAT {
+		@Override
+		public FeatureMatrix allocate(int rows, int columns) {
+			return new FloatMatrix(rows, columns);
+		}
+
+		@Override
+		public FeatureMatrix convert(FeatureMatrix features) {
+			return features instanceof FloatMatrix ? features : new FloatMatrix(features);
+		}
+	},
+
+	/**
+	 * {@link ByteMatrix}, 1 byte per feature: the features are quantized on 256 levels (exact for
+	 * the pixels of the images)
+	 */
+	UINT8 {
+		@Override
+		public FeatureMatrix allocate(int rows, int columns) {
+			return new ByteMatrix(rows, columns, 1d);
+		}
+
+		@Override
+		public FeatureMatrix convert(FeatureMatrix features) {
+			return features instanceof ByteMatrix ? features : new ByteMatrix(features);
+		}
+	},
+
+	/**
+	 * {@link SparseMatrix}, 12 bytes per non-zero feature: the products skip the zeros (most of the
+	 * pixels of the images)
+	 */
+	SPARSE {
+		@Override
+		public FeatureMatrix allocate(int rows, int columns) {
+			return SparseMatrix.builder(rows, columns, 0).build();
+		}
+
+		@Override
+		public FeatureMatrix convert(FeatureMatrix features) {
+			return features instanceof SparseMatrix ? features : new SparseMatrix(features);
+		}
+	},
+
+	/**
+	 * {@link OffHeapMatrix}, 4 bytes per feature out of the Java heap (memory-mapped from the cache of
+	 * the data sets when it holds them)
+	 */
+	OFF_HEAP {
+		@Override
+		public FeatureMatrix allocate(int rows, int columns) {
+			return new OffHeapMatrix(rows, columns);
+		}
+
+		@Override
+		public FeatureMatrix convert(FeatureMatrix features) {
+			return features instanceof OffHeapMatrix ? features : new OffHeapMatrix(features);
+		}
+	};
+
+	public abstract FeatureMatrix allocate(int rows, int columns);
+
+	/**
+	 * @return the features in this format (the same instance if they already are)
+	 */
+	public abstract FeatureMatrix convert(FeatureMatrix features);
+}
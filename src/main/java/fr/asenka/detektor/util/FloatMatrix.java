@@ -0,0 +1,186 @@
+package fr.asenka.detektor.util;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+
+/**
+ * Dense matrix of floats stored in a single row-major array, used to hold the features with half
+ * the memory of a {@link Matrix}.
+ *
+ * The entry (r, c) is located at {@code data[offset + r * rowStride + c]}: the columns of a row are
+ * always contiguous, the row stride allows views on consecutive rows. The values are widened to
+ * double when they are read, so the products with the (double) weights are accumulated in double.
+ */
+public final class FloatMatrix implements FeatureMatrix {
+
+	final float[] data;
+	final int offset;
+	final int rowStride;
+	private final int rows;
+	private final int columns;
+
+	private FloatMatrix(float[] data, int offset, int rowStride, int rows, int columns) {
+		this.data = data;
+		this.offset = offset;
+		this.rowStride = rowStride;
+		this.rows = rows;
+		this.columns = columns;
+	}
+
+	public FloatMatrix(int rows, int columns) {
+		this(allocate(rows, columns), 0, columns, rows, columns);
+	}
+
+	public FloatMatrix(FeatureMatrix matrix) {
+		this(matrix.rows(), matrix.columns());
+
+		if (matrix instanceof Matrix) {
+			Matrix m = (Matrix) matrix;
+			for (int r = 0; r < rows; r++)
+				for (int c = 0, i = m.offset + r * m.rowStride; c < columns; c++, i += m.columnStride)
+					data[r * columns + c] = (float) m.data[i];
+		} else {
+			double[] row = new double[columns];
+			for (int r = 0; r < rows; r++) {
+				matrix.readRow(r, 0, columns, row, 0);
+				for (int c = 0; c < columns; c++)
+					data[r * columns + c] = (float) row[c];
+			}
+		}
+	}
+
+	@Override
+	public int rows() {
+		return rows;
+	}
+
+	@Override
+	public int columns() {
+		return columns;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		return data[offset + row * rowStride + column];
+	}
+
+	public void set(int row, int column, double value) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		data[offset + row * rowStride + column] = (float) value;
+	}
+
+	@Override
+	public FloatMatrix rowsView(int startRow, int endRow) {
+		checkRowIndex(startRow);
+		checkRowIndex(endRow);
+		if (endRow < startRow)
+			throw new NumberIsTooSmallException(LocalizedFormats.INITIAL_ROW_AFTER_FINAL_ROW, endRow, startRow, false);
+
+		return new FloatMatrix(data, offset + startRow * rowStride, rowStride, endRow - startRow + 1, columns);
+	}
+
+	/**
+	 * @return a copy of the given rows
+	 */
+	@Override
+	public FloatMatrix gatherRows(int[] indexes, int offset, int length) {
+
+		FloatMatrix result = new FloatMatrix(length, columns);
+
+		for (int r = 0; r < length; r++) {
+			checkRowIndex(indexes[offset + r]);
+			System.arraycopy(data, this.offset + indexes[offset + r] * rowStride, result.data, r * columns, columns);
+		}
+		return result;
+	}
+
+	@Override
+	public Matrix multiplyTransposed(Matrix b, Matrix dest) {
+
+		if (columns != b.columns())
+			throw new DimensionMismatchException(b.columns(), columns);
+		checkDestination(dest, rows, b.rows());
+
+		if (dest.data == b.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		if (dest.columnStride == 1)
+			FeatureGemm.multiplyTransposed(this, b, dest);
+		else
+			dest.copyFrom(multiplyTransposed(b, new Matrix(rows, b.rows())));
+
+		return dest;
+	}
+
+	@Override
+	public Matrix premultiplyTransposed(Matrix a, Matrix dest) {
+
+		if (a.rows() != rows)
+			throw new DimensionMismatchException(rows, a.rows());
+		checkDestination(dest, a.columns(), columns);
+
+		if (dest.data == a.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		if (dest.columnStride == 1)
+			FeatureGemm.premultiplyTransposed(a, this, dest);
+		else
+			dest.copyFrom(premultiplyTransposed(a, new Matrix(a.columns(), columns)));
+
+		return dest;
+	}
+
+	@Override
+	public Matrix toMatrix() {
+
+		Matrix result = new Matrix(rows, columns);
+
+		for (int r = 0; r < rows; r++)
+			for (int c = 0, i = offset + r * rowStride; c < columns; c++)
+				result.data[r * columns + c] = data[i + c];
+
+		return result;
+	}
+
+	@Override
+	public void readRow(int row, int column, int length, double[] destination, int destinationOffset) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		checkColumnIndex(column + length - 1);
+
+		for (int c = 0, i = offset + row * rowStride + column; c < length; c++)
+			destination[destinationOffset + c] = data[i + c];
+	}
+
+	private void checkRowIndex(int row) {
+		if (row < 0 || row >= rows)
+			throw new OutOfRangeException(LocalizedFormats.ROW_INDEX, row, 0, rows - 1);
+	}
+
+	private void checkColumnIndex(int column) {
+		if (column < 0 || column >= columns)
+			throw new OutOfRangeException(LocalizedFormats.COLUMN_INDEX, column, 0, columns - 1);
+	}
+
+	private static void checkDestination(Matrix dest, int rows, int columns) {
+		if (dest.rows() != rows || dest.columns() != columns)
+			throw new MatrixDimensionMismatchException(dest.rows(), dest.columns(), rows, columns);
+	}
+
+	private static final float[] allocate(int rows, int columns) {
+
+		if (rows < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, rows);
+		if (columns < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, columns);
+
+		return new float[Math.multiplyExact(rows, columns)];
+	}
+}
@@ -0,0 +1,216 @@
+package fr.asenka.detektor.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Cache-blocked, multi-threaded general matrix multiplication (C = A.B or C += A.B).
+ *
+ * The operands are read through their offset and strides, so transposed views are multiplied
+ * without being copied. A block of B (KC x NC) is packed into a contiguous buffer that stays in
+ * the L2 cache while the micro-kernel updates MR rows of C at once, reusing every value loaded from
+ * the packed block MR times. The work is split in blocks of rows and columns of C across the
+ * {@link ComputePool}; when C is too small to keep every thread busy (e.g. a gradient k x h
+ * accumulated over m examples) the inner dimension is split as well and the partial products are
+ * summed at the end.
+ */
+final class Gemm {
+
+	private static final int MR = 4;
+
+	private static final int KC = 128;
+
+	private static final int NC = 256;
+
+	private static final int MIN_BLOCK_ROWS = 32;
+
+	private static final int MIN_BLOCK_COLUMNS = 64;
+
+	private static final int MIN_SPLIT_DEPTH = 1024;
+
+	private static final long SEQUENTIAL_THRESHOLD = 1L << 17;
+
+	private static final ThreadLocal<double[]> PACKED_BLOCK = ThreadLocal.withInitial(() -> new double[KC * NC]);
+
+	private Gemm() {
+	}
+
+	/**
+	 * Computes c = a.b (or c += a.b when accumulate is true). The columns of c must be contiguous and c
+	 * must not share its storage with a or b.
+	 */
+	static void multiply(Matrix a, Matrix b, Matrix c, boolean accumulate) {
+
+		final int m = a.rows(), n = b.columns(), k = a.columns();
+
+		if (!accumulate)
+			c.fill(0d);
+
+		long work = (long) m * n * k;
+		ForkJoinPool pool = work < SEQUENTIAL_THRESHOLD ? null : ComputePool.acquire();
+
+		if (pool == null) {
+			kernel(a, b, c, 0, m, 0, n, 0, k);
+			return;
+		}
+
+		try {
+			int parallelism = pool.getParallelism();
+			int blocks = Math.max(1, m / MIN_BLOCK_ROWS) * Math.max(1, n / MIN_BLOCK_COLUMNS);
+			int depthSplits = blocks >= parallelism ? 1 : Math.min(parallelism / blocks, k / MIN_SPLIT_DEPTH);
+
+			if (depthSplits <= 1)
+				pool.invoke(new Block(a, b, c, 0, m, 0, n, 0, k, parallelism));
+			else
+				pool.invoke(new DepthSplit(a, b, c, depthSplits, parallelism));
+		} finally {
+			ComputePool.release(pool);
+		}
+	}
+
+	private static void kernel(Matrix a, Matrix b, Matrix c, int r0, int r1, int c0, int c1, int k0, int k1) {
+
+		final double[] packed = PACKED_BLOCK.get();
+		final double[] ad = a.data, cd = c.data;
+		final int ars = a.rowStride, acs = a.columnStride, crs = c.rowStride;
+
+		for (int jc = c0; jc < c1; jc += NC) {
+			final int nc = Math.min(NC, c1 - jc);
+
+			for (int pc = k0; pc < k1; pc += KC) {
+				final int kc = Math.min(KC, k1 - pc);
+				pack(b, pc, kc, jc, nc, packed);
+
+				int i = r0;
+				for (; i + MR <= r1; i += MR) {
+					final int a0 = a.offset + i * ars + pc * acs, a1 = a0 + ars, a2 = a1 + ars, a3 = a2 + ars;
+					final int ci0 = c.offset + i * crs + jc, ci1 = ci0 + crs, ci2 = ci1 + crs, ci3 = ci2 + crs;
+
+					for (int p = 0; p < kc; p++) {
+						final int ap = p * acs;
+						final double v0 = ad[a0 + ap], v1 = ad[a1 + ap], v2 = ad[a2 + ap], v3 = ad[a3 + ap];
+						final int bp = p * nc;
+
+						for (int j = 0; j < nc; j++) {
+							final double bv = packed[bp + j];
+							cd[ci0 + j] += v0 * bv;
+							cd[ci1 + j] += v1 * bv;
+							cd[ci2 + j] += v2 * bv;
+							cd[ci3 + j] += v3 * bv;
+						}
+					}
+				}
+				for (; i < r1; i++) {
+					final int a0 = a.offset + i * ars + pc * acs;
+					final int ci0 = c.offset + i * crs + jc;
+
+					for (int p = 0; p < kc; p++) {
+						final double v0 = ad[a0 + p * acs];
+						final int bp = p * nc;
+
+						for (int j = 0; j < nc; j++)
+							cd[ci0 + j] += v0 * packed[bp + j];
+					}
+				}
+			}
+		}
+	}
+
+	private static void pack(Matrix b, int pc, int kc, int jc, int nc, double[] packed) {
+
+		final double[] bd = b.data;
+		final int brs = b.rowStride, bcs = b.columnStride;
+
+		for (int p = 0; p < kc; p++) {
+			final int src = b.offset + (pc + p) * brs + jc * bcs, dst = p * nc;
+
+			if (bcs == 1)
+				System.arraycopy(bd, src, packed, dst, nc);
+			else
+				for (int j = 0; j < nc; j++)
+					packed[dst + j] = bd[src + j * bcs];
+		}
+	}
+
+	private static final class Block extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Matrix a, b, c;
+		private final int r0, r1, c0, c1, k0, k1;
+		private final int parallelism;
+
+		private Block(Matrix a, Matrix b, Matrix c, int r0, int r1, int c0, int c1, int k0, int k1, int parallelism) {
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.r0 = r0;
+			this.r1 = r1;
+			this.c0 = c0;
+			this.c1 = c1;
+			this.k0 = k0;
+			this.k1 = k1;
+			this.parallelism = parallelism;
+		}
+
+		@Override
+		protected void compute() {
+
+			final int rows = r1 - r0, columns = c1 - c0;
+			final long work = (long) rows * columns * (k1 - k0);
+			final long total = (long) a.rows() * b.columns() * (k1 - k0);
+
+			// Aim for a few tasks per thread so that the work stealing can balance the load
+			if (work < SEQUENTIAL_THRESHOLD || work * 4 * parallelism <= total
+					|| (rows < 2 * MIN_BLOCK_ROWS && columns < 2 * MIN_BLOCK_COLUMNS)) {
+				kernel(a, b, c, r0, r1, c0, c1, k0, k1);
+			} else if (rows >= 2 * MIN_BLOCK_ROWS && (rows >= columns || columns < 2 * MIN_BLOCK_COLUMNS)) {
+				int middle = r0 + (rows / 2 / MR) * MR;
+				invokeAll(new Block(a, b, c, r0, middle, c0, c1, k0, k1, parallelism),
+						new Block(a, b, c, middle, r1, c0, c1, k0, k1, parallelism));
+			} else {
+				int middle = c0 + columns / 2;
+				invokeAll(new Block(a, b, c, r0, r1, c0, middle, k0, k1, parallelism),
+						new Block(a, b, c, r0, r1, middle, c1, k0, k1, parallelism));
+			}
+		}
+	}
+
+	private static final class DepthSplit extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Matrix a, b, c;
+		private final int splits;
+		private final int parallelism;
+
+		private DepthSplit(Matrix a, Matrix b, Matrix c, int splits, int parallelism) {
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.splits = splits;
+			this.parallelism = parallelism;
+		}
+
+		@Override
+		protected void compute() {
+
+			final int m = a.rows(), n = b.columns(), k = a.columns();
+			final Matrix[] partials = new Matrix[splits];
+			final Block[] tasks = new Block[splits];
+
+			for (int s = 0; s < splits; s++) {
+				partials[s] = s == 0 ? c : new Matrix(m, n);
+				tasks[s] = new Block(a, b, partials[s], 0, m, 0, n, (int) ((long) k * s / splits), (int) ((long) k * (s + 1) / splits), parallelism);
+			}
+			invokeAll(tasks);
+
+			for (int s = 1; s < splits; s++)
+				for (int r = 0; r < m; r++) {
+					final int ci = c.offset + r * c.rowStride, pi = r * n;
+					for (int j = 0; j < n; j++)
+						c.data[ci + j] += partials[s].data[pi + j];
+				}
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package fr.asenka.detektor.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sequential reader of the data section of an IDX file (the format of the MNIST files).
+ *
+ * Gzipped files (*.gz) are decompressed on the fly by chunks, so the whole file is never held in
+ * memory. Other files are memory-mapped (by windows, to support files bigger than 2 GB) and their
+ * bytes are decoded in place, without being copied into an intermediate array.
+ */
+final class IdxFile implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final long WINDOW_SIZE = 1L << 28;
+
+	private final int magicNumber;
+
+	private final int[] dimensions;
+
+	private final DataInputStream stream;
+
+	private final FileChannel channel;
+
+	private final long windowSize;
+
+	private MappedByteBuffer window;
+
+	private long windowStart;
+
+	private long position;
+
+	private byte[] chunk;
+
+	private IdxFile(DataInputStream stream, FileChannel channel, long windowSize) throws IOException {
+
+		this.stream = stream;
+		this.channel = channel;
+		this.windowSize = windowSize;
+
+		if (stream != null) {
+			this.magicNumber = stream.readInt();
+			this.dimensions = new int[magicNumber & 0xFF];
+			for (int i = 0; i < dimensions.length; i++)
+				dimensions[i] = stream.readInt();
+		} else {
+			map(0L);
+			if (window.limit() < 4)
+				throw new EOFException();
+			this.magicNumber = window.getInt(0);
+			this.dimensions = new int[magicNumber & 0xFF];
+			if (window.limit() < 4 + 4 * dimensions.length)
+				throw new EOFException();
+			for (int i = 0; i < dimensions.length; i++)
+				dimensions[i] = window.getInt(4 + 4 * i);
+			this.position = 4 + 4 * dimensions.length;
+		}
+	}
+
+	/**
+	 * Opens the file and checks its magic number (e.g. 2051 for images, 2049 for labels).
+	 */
+	static IdxFile open(Path file, int magicNumber, String description) throws IOException {
+		return open(file, magicNumber, description, WINDOW_SIZE);
+	}
+
+	/**
+	 * @param windowSize the number of bytes mapped at once (at least the size of the header), e.g.
+	 *            a few bytes to test the reads across windows
+	 */
+	static IdxFile open(Path file, int magicNumber, String description, long windowSize) throws IOException {
+
+		Closeable resource = null; // closed when the file cannot be opened (e.g. not gzipped, truncated)
+
+		try {
+			IdxFile idx;
+
+			if (file.getFileName().toString().endsWith(".gz")) {
+				InputStream input = Files.newInputStream(file);
+				resource = input;
+				DataInputStream stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input, BUFFER_SIZE), BUFFER_SIZE));
+				resource = stream;
+				idx = new IdxFile(stream, null, windowSize);
+			} else {
+				FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+				resource = channel;
+				idx = new IdxFile(null, channel, windowSize);
+			}
+
+			if (idx.magicNumber() != magicNumber)
+				throw new IOException("Not " + description + " file");
+
+			return idx;
+
+		} catch (IOException | RuntimeException e) {
+			if (resource != null) {
+				try {
+					resource.close();
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+			}
+			throw e;
+		}
+	}
+
+	int magicNumber() {
+		return magicNumber;
+	}
+
+	int dimension(int index) {
+		return dimensions[index];
+	}
+
+	/**
+	 * @return the number of bytes of each item (e.g. the pixels of an image)
+	 */
+	int itemSize() {
+
+		int size = 1;
+
+		for (int i = 1; i < dimensions.length; i++)
+			size *= dimensions[i];
+
+		return size;
+	}
+
+	/**
+	 * Reads the next bytes of the data section.
+	 */
+	void read(byte[] destination, int offset, int length) throws IOException {
+
+		if (stream != null) {
+			stream.readFully(destination, offset, length);
+			return;
+		}
+		while (length > 0) {
+			int count = (int) Math.min(length, available());
+			window.position((int) (position - windowStart));
+			window.get(destination, offset, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Reads the next bytes of the data section as unsigned values multiplied by scale.
+	 */
+	void readUnsigned(double[] destination, int offset, int length, double scale) throws IOException {
+
+		if (stream != null) {
+			if (chunk == null)
+				chunk = new byte[BUFFER_SIZE];
+
+			while (length > 0) {
+				int count = Math.min(length, BUFFER_SIZE);
+				stream.readFully(chunk, 0, count);
+				for (int i = 0; i < count; i++)
+					destination[offset + i] = (chunk[i] & 0xFF) * scale;
+				offset += count;
+				length -= count;
+			}
+			return;
+		}
+		while (length > 0) {
+			int count = (int) Math.min(length, available());
+			int start = (int) (position - windowStart);
+			for (int i = 0; i < count; i++)
+				destination[offset + i] = (window.get(start + i) & 0xFF) * scale;
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Reads the next bytes of the data section as unsigned values multiplied by scale, rounded to floats.
+	 */
+	void readUnsigned(float[] destination, int offset, int length, double scale) throws IOException {
+
+		if (stream != null) {
+			if (chunk == null)
+				chunk = new byte[BUFFER_SIZE];
+
+			while (length > 0) {
+				int count = Math.min(length, BUFFER_SIZE);
+				stream.readFully(chunk, 0, count);
+				for (int i = 0; i < count; i++)
+					destination[offset + i] = (float) ((chunk[i] & 0xFF) * scale);
+				offset += count;
+				length -= count;
+			}
+			return;
+		}
+		while (length > 0) {
+			int count = (int) Math.min(length, available());
+			int start = (int) (position - windowStart);
+			for (int i = 0; i < count; i++)
+				destination[offset + i] = (float) ((window.get(start + i) & 0xFF) * scale);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (stream != null)
+			stream.close();
+		else
+			channel.close();
+	}
+
+	/**
+	 * @return the number of bytes that can be read from the current window, after remapping it if it is exhausted
+	 */
+	private long available() throws IOException {
+
+		if (position >= windowStart + window.limit()) {
+			if (position >= channel.size())
+				throw new EOFException();
+			map(position);
+		}
+		return windowStart + window.limit() - position;
+	}
+
+	private void map(long start) throws IOException {
+		windowStart = start;
+		window = channel.map(MapMode.READ_ONLY, start, Math.min(windowSize, channel.size() - start));
+	}
+}
@@ -1,45 +1,78 @@
 package fr.asenka.detektor.util;
 
-import static org.apache.commons.math3.linear.MatrixUtils.createRealMatrix;
-
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Random;
 import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.function.DoubleUnaryOperator;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import org.apache.commons.math3.exception.DimensionMismatchException;
-import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+import org.apache.commons.math3.linear.NonSquareMatrixException;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.stat.StatUtils;
 
-public class Matrix implements Iterable<Double> {
+/**
+ * Dense matrix of doubles stored in a single row-major array.
+ *
+ * The entry (r, c) is located at {@code data[offset + r * rowStride + c * columnStride]}. Keeping
+ * all the entries in one contiguous array (instead of one array per row) keeps the kernels cache
+ * friendly and lets the JIT vectorize the inner loops. The strides also allow zero-copy views
+ * such as {@link #transposedView()}; the element-wise operations copy a view whose columns are not
+ * contiguous before reading it. The methods whose name ends with View share the storage (writing
+ * into the view writes into this matrix), while rows, columns, subMatrix, getRow and getColumn
+ * return copies. Commons-math is only used as an adapter (see {@link #Matrix(RealMatrix)} and
+ * {@link #toRealMatrix()}).
+ */
+public class Matrix implements Iterable<Double>, FeatureMatrix {
 
-	private final RealMatrix matrix;
+	final double[] data;
+	final int offset;
+	final int rowStride;
+	final int columnStride;
 	private final int rows;
 	private final int columns;
 
+	private Matrix(double[] data, int offset, int rowStride, int columnStride, int rows, int columns) {
+		this.data = data;
+		this.offset = offset;
+		this.rowStride = rowStride;
+		this.columnStride = columnStride;
+		this.rows = rows;
+		this.columns = columns;
+	}
+
 	public Matrix(RealMatrix matrix) {
-		this.matrix = matrix;
-		this.rows = matrix.getRowDimension();
-		this.columns = matrix.getColumnDimension();
+		this(matrix.getData());
 	}
 
 	public Matrix(double[][] data) {
-		this(createRealMatrix(data));
+		this(data.length, data[0].length);
+
+		for (int r = 0; r < rows; r++) {
+			if (data[r].length != columns)
+				throw new DimensionMismatchException(data[r].length, columns);
+			System.arraycopy(data[r], 0, this.data, r * columns, columns);
+		}
 	}
-	
+
 	public Matrix(int[][] data) {
 		this(data.length, data[0].length);
-		
+
 		for (int r = 0; r < rows; r++)
 			for (int c = 0; c < columns; c++)
-				this.matrix.setEntry(r, c, (double) data[r][c]);
+				this.data[r * columns + c] = (double) data[r][c];
 	}
 
 	public Matrix(int[] sizes) {
@@ -47,7 +80,7 @@ public class Matrix implements Iterable<Double> {
 	}
 
 	public Matrix(int rows, int columns) {
-		this(createRealMatrix(rows, columns));
+		this(allocate(rows, columns), 0, columns, 1, rows, columns);
 	}
 
 	public Matrix(int size) {
@@ -57,9 +90,8 @@ public class Matrix implements Iterable<Double> {
 	public Matrix(int rows, int columns, double value) {
 		this(rows, columns);
 
-		for (int r = 0; r < rows; r++)
-			for (int c = 0; c < columns; c++)
-				this.matrix.setEntry(r, c, value);
+		if (value != 0d)
+			Arrays.fill(this.data, value);
 	}
 
 	public Matrix(int size, double value) {
@@ -67,64 +99,95 @@ public class Matrix implements Iterable<Double> {
 	}
 
 	public Matrix(String content) {
-
-		String[] contentRows = content.split(";");
-		this.rows = contentRows.length;
-		this.columns = contentRows[0].split(" ").length;
-		this.matrix = createRealMatrix(rows, columns);
-
-		for (int r = 0; r < rows; r++) {
-			String[] numbers = contentRows[r].trim().split(" ");
-			for (int c = 0; c < columns; c++)
-				this.matrix.setEntry(r, c, Double.parseDouble(numbers[c]));
-		}
+		this(parse(content));
 	}
-	
+
 	public boolean isScalar() {
 		return rows == 1 && columns == 1;
 	}
-	
+
 	public boolean isSquare() {
 		return rows == columns;
 	}
-	
+
 	public boolean isRow() {
 		return rows == 1;
 	}
-	
+
 	public boolean isColumn() {
 		return columns == 1;
 	}
 
 	public Matrix copy() {
-		return new Matrix(this.matrix.copy());
+		return subMatrix(0, rows - 1, 0, columns - 1);
 	}
 
 	public Matrix add(Matrix other) {
-		MatrixUtils.checkAdditionCompatible(this.matrix, other.matrix);
-		return new Matrix(this.matrix.add(other.matrix));
+		checkSameDimensions(other);
+		return linear(this, 1d, other, new Matrix(rows, columns));
 	}
 
 	public Matrix add(double value) {
-		return new Matrix(this.matrix.scalarAdd(value));
+		return shift(this, value, new Matrix(rows, columns));
 	}
 
 	public Matrix subtract(Matrix other) {
-		MatrixUtils.checkSubtractionCompatible(this.matrix, other.matrix);
-		return new Matrix(this.matrix.subtract(other.matrix));
+		checkSameDimensions(other);
+		return linear(this, -1d, other, new Matrix(rows, columns));
 	}
 
 	public Matrix subtract(double value) {
-		return new Matrix(this.matrix.scalarAdd(-value));
+		return add(-value);
 	}
 
 	public Matrix multiply(Matrix other) {
-		MatrixUtils.checkMultiplicationCompatible(this.matrix, other.matrix);
-		return new Matrix(this.matrix.multiply(other.matrix));
+
+		if (columns != other.rows)
+			throw new DimensionMismatchException(other.rows, columns);
+
+		Matrix result = new Matrix(rows, other.columns);
+		Gemm.multiply(this, other, result, false);
+		return result;
+	}
+
+	/**
+	 * @return this . other<sup>T</sup>, without copying other
+	 */
+	public Matrix multiplyTransposed(Matrix other) {
+
+		if (columns != other.columns)
+			throw new DimensionMismatchException(other.columns, columns);
+
+		Matrix result = new Matrix(rows, other.rows);
+		Gemm.multiply(this, other.transposedView(), result, false);
+		return result;
+	}
+
+	/**
+	 * @return this<sup>T</sup> . other, without copying this
+	 */
+	public Matrix transposeMultiply(Matrix other) {
+
+		if (rows != other.rows)
+			throw new DimensionMismatchException(other.rows, rows);
+
+		Matrix result = new Matrix(columns, other.columns);
+		Gemm.multiply(transposedView(), other, result, false);
+		return result;
+	}
+
+	@Override
+	public Matrix multiplyTransposed(Matrix b, Matrix dest) {
+		return multiplyTransposed(this, b, dest);
+	}
+
+	@Override
+	public Matrix premultiplyTransposed(Matrix a, Matrix dest) {
+		return transposeMultiply(a, this, dest);
 	}
 
 	public Matrix multiply(double value) {
-		return new Matrix(this.matrix.scalarMultiply(value));
+		return scale(this, value, new Matrix(rows, columns));
 	}
 
 	public Matrix multiplyEachEntry(Matrix other) {
@@ -134,323 +197,564 @@ public class Matrix implements Iterable<Double> {
 		else if (columns != other.columns)
 			throw new DimensionMismatchException(other.columns, columns);
 
-		Matrix result = new Matrix(rows, columns);
+		return hadamard(this, other, new Matrix(rows, columns));
+	}
+
+	public Matrix addInPlace(Matrix other) {
+		return add(this, other, this);
+	}
+
+	public Matrix addInPlace(double value) {
+		return shift(this, value, this);
+	}
+
+	public Matrix subtractInPlace(Matrix other) {
+		return subtract(this, other, this);
+	}
+
+	public Matrix scaleInPlace(double value) {
+		return scale(this, value, this);
+	}
+
+	public Matrix hadamardInPlace(Matrix other) {
+		return hadamard(this, other, this);
+	}
+
+	/**
+	 * Adds the row vector to each row of this matrix
+	 */
+	public Matrix addToEachRow(Matrix row) {
+
+		if (row.rows != 1 || row.columns != columns)
+			throw new MatrixDimensionMismatchException(row.rows, row.columns, 1, columns);
 
 		for (int r = 0; r < rows; r++)
-			for (int c = 0; c < columns; c++)
-				result.matrix.setEntry(r, c, this.matrix.getEntry(r, c) * other.matrix.getEntry(r, c));
+			for (int c = 0, i = index(r, 0), j = row.offset; c < columns; c++, i += columnStride, j += row.columnStride)
+				data[i] += row.data[j];
 
-		return result;
+		return this;
 	}
-	
+
+	/**
+	 * this = this + alpha * x
+	 */
+	public Matrix axpy(double alpha, Matrix x) {
+		checkSameDimensions(x);
+		return linear(this, alpha, x, this);
+	}
+
+	public Matrix copyFrom(Matrix other) {
+		checkSameDimensions(other);
+		return scale(other, 1d, this);
+	}
+
+	public Matrix fill(double value) {
+
+		for (int r = 0; r < rows; r++)
+			if (columnStride == 1)
+				Arrays.fill(data, offset + r * rowStride, offset + r * rowStride + columns, value);
+			else
+				for (int c = 0; c < columns; c++)
+					data[index(r, c)] = value;
+
+		return this;
+	}
+
 	public Matrix divideEachEntry(Matrix other) {
-	
+
 		if (rows != other.rows)
 			throw new DimensionMismatchException(other.rows, rows);
 		else if (columns != other.columns)
 			throw new DimensionMismatchException(other.columns, columns);
 
+		Matrix a = contiguous(), b = other.contiguous();
 		Matrix result = new Matrix(rows, columns);
 
-		for (int r = 0; r < rows; r++)
+		for (int r = 0; r < rows; r++) {
+			int i = a.offset + r * a.rowStride, j = b.offset + r * b.rowStride, k = r * columns;
 			for (int c = 0; c < columns; c++)
-				result.matrix.setEntry(r, c, this.matrix.getEntry(r, c) / other.matrix.getEntry(r, c));
-
+				result.data[k + c] = a.data[i + c] / b.data[j + c];
+		}
 		return result;
 	}
 
 	public Matrix divide(double value) {
-		return new Matrix(this.matrix.scalarMultiply(1.0 / value));
+		return multiply(1.0 / value);
 	}
 
 	public Matrix power(int p) {
-		return new Matrix(this.matrix.power(p));
+
+		if (!isSquare())
+			throw new NonSquareMatrixException(rows, columns);
+		if (p < 0)
+			throw new NumberIsTooSmallException(p, 0, true);
+
+		Matrix result = identity(rows);
+		Matrix square = this;
+
+		// Exponentiation by squaring
+		for (int e = p; e > 0; e >>= 1) {
+			if ((e & 1) == 1)
+				result = result.multiply(square);
+			if (e > 1)
+				square = square.multiply(square);
+		}
+		return result;
 	}
-	
+
 	public Matrix flatRow() {
-		Matrix result = new Matrix(1, rows * columns);
-		int index = 0;
-		
-		for (double elem : this)
-			result.set(0, index++, elem);
-		
-		return result;
+		return flat(1, rows * columns);
 	}
-	
+
 	public Matrix flatColumn() {
-		Matrix result = new Matrix(rows * columns, 1);
-		int index = 0;
-		
-		for (double elem : this)
-			result.set(index++, 0, elem);
-		
-		return result;
+		return flat(rows * columns, 1);
 	}
 
 	public Matrix transpose() {
-		return new Matrix(this.matrix.transpose());
+
+		Matrix result = new Matrix(columns, rows);
+
+		for (int r = 0; r < rows; r++) {
+			int i = offset + r * rowStride;
+			for (int c = 0; c < columns; c++)
+				result.data[c * rows + r] = data[i + c * columnStride];
+		}
+		return result;
 	}
-	
+
+	public Matrix transposedView() {
+		return new Matrix(data, offset, columnStride, rowStride, columns, rows);
+	}
+
 	public Matrix negative() {
-		return applyOnEach(x -> -x);
+		return multiply(-1d);
 	}
-	
+
 	public Matrix normalize() {
 		final double max = max();
 		final double min = min();
 		return applyOnEach(x -> (x - min) / (max - min));
 	}
-	
+
 
 	public double trace() {
-		return this.matrix.getTrace();
+
+		if (!isSquare())
+			throw new NonSquareMatrixException(rows, columns);
+
+		double trace = 0d;
+
+		for (int r = 0; r < rows; r++)
+			trace += data[index(r, r)];
+
+		return trace;
 	}
-	
+
+	/**
+	 * @return the maximum absolute column sum norm (L1 operator norm), as commons-math
+	 */
 	public double norm() {
-		return this.matrix.getNorm();
+
+		double max = 0d;
+
+		for (int c = 0; c < columns; c++) {
+			double sum = 0d;
+			for (int r = 0; r < rows; r++)
+				sum += Math.abs(data[index(r, c)]);
+			max = Math.max(max, sum);
+		}
+		return max;
 	}
 
 	public long size() {
-		return rows * columns;
+		return (long) rows * columns;
 	}
-	
+
+	@Override
 	public int rows() {
 		return rows;
 	}
-	
+
+	@Override
 	public int columns() {
 		return columns;
 	}
-	
+
 	public double max() {
-		return stream().max((a, b) -> Double.compare(a, b)).get();
+		return Reductions.max(this);
 	}
-	
+
 	public double min() {
-		return stream().min((a, b) -> Double.compare(a, b)).get();
+		return Reductions.min(this);
 	}
-	
+
 	public Matrix maxByRow() {
-		
-		Matrix result = new Matrix(rows, 1);
-		
-		for(int r = 0; r < rows; r++)
-			result.set(r, 0, getRow(r).max());
-		
-		return result;
+		return Reductions.extremeByRow(this, true, false, new Matrix(rows, 1));
 	}
-	
+
 	public Matrix indexMaxByRow() {
-		
-		Matrix result = new Matrix(rows, 1);
-		
-		for(int r = 0; r < rows; r++)
-			result.set(r, 0, indexMax(matrix.getRow(r)));
-			
-		return result;
+		return Reductions.extremeByRow(this, true, true, new Matrix(rows, 1));
 	}
-	
+
 	public Matrix minByRow() {
-		
-		Matrix result = new Matrix(rows, 1);
-		
-		for(int r = 0; r < rows; r++)
-			result.set(r, 0, getRow(r).min());
-		
-		return result;
+		return Reductions.extremeByRow(this, false, false, new Matrix(rows, 1));
 	}
-	
+
 	public Matrix indexMinByRow() {
-		
-		Matrix result = new Matrix(rows, 1);
-		
-		for(int r = 0; r < rows; r++)
-			result.set(r, 0, indexMin(matrix.getRow(r)));
-			
-		return result;
+		return Reductions.extremeByRow(this, false, true, new Matrix(rows, 1));
 	}
-	
+
 	public Matrix maxByColumn() {
-		
-		Matrix result = new Matrix(1, columns);
-		
-		for(int c = 0; c < columns; c++)
-			result.set(0, c, getColumn(c).max());
-		
-		return result;
+		return Reductions.extremeByColumn(this, true, false, new Matrix(1, columns));
 	}
-	
+
 	public Matrix indexMaxByColumn() {
-		
-		Matrix result = new Matrix(1, columns);
-		
-		for(int c = 0; c < columns; c++)
-			result.set(0, c, indexMax(matrix.getColumn(c)));
-		
-		return result;
+		return Reductions.extremeByColumn(this, true, true, new Matrix(1, columns));
 	}
-	
+
 	public Matrix minByColumn() {
-		
-		Matrix result = new Matrix(1, columns);
-		
-		for(int c = 0; c < columns; c++)
-			result.set(0, c, getColumn(c).min());
-		
-		return result;
+		return Reductions.extremeByColumn(this, false, false, new Matrix(1, columns));
 	}
-	
+
 	public Matrix indexMinByColumn() {
-		
-		Matrix result = new Matrix(1, columns);
-		
-		for(int c = 0; c < columns; c++)
-			result.set(0, c, indexMin(matrix.getColumn(c)));
-		
-		return result;
+		return Reductions.extremeByColumn(this, false, true, new Matrix(1, columns));
 	}
-	
+
 	public Matrix concatV(Matrix other) {
-		
+
 		if (columns != other.columns)
 			throw new DimensionMismatchException(other.columns, columns);
-		
+
+		Matrix a = contiguous(), b = other.contiguous();
 		Matrix result = new Matrix(rows + other.rows, columns);
-		
+
 		for (int r = 0; r < rows; r++)
-			for (int c = 0; c < columns; c++)
-				result.matrix.setEntry(r, c, this.matrix.getEntry(r, c));
-		
+			System.arraycopy(a.data, a.offset + r * a.rowStride, result.data, r * columns, columns);
+
 		for (int r = 0; r < other.rows; r++)
-			for (int c = 0; c < other.columns; c++)
-				result.matrix.setEntry(rows + r, c, other.matrix.getEntry(r, c));
-		
+			System.arraycopy(b.data, b.offset + r * b.rowStride, result.data, (rows + r) * columns, columns);
+
 		return result;
 	}
-	
+
 	public Matrix concatH(Matrix other) {
-		
+
 		if (rows != other.rows)
 			throw new DimensionMismatchException(other.rows, rows);
-		
+
+		Matrix a = contiguous(), b = other.contiguous();
 		Matrix result = new Matrix(rows, columns + other.columns);
-		
-		for (int r = 0; r < rows; r++)
-			for (int c = 0; c < columns; c++)
-				result.matrix.setEntry(r, c, this.matrix.getEntry(r, c));
-		
-		for (int r = 0; r < other.rows; r++)
-			for (int c = 0; c < other.columns; c++)
-				result.matrix.setEntry(r, columns + c, other.matrix.getEntry(r, c));
-		
+
+		for (int r = 0; r < rows; r++) {
+			System.arraycopy(a.data, a.offset + r * a.rowStride, result.data, r * result.columns, columns);
+			System.arraycopy(b.data, b.offset + r * b.rowStride, result.data, r * result.columns + columns, other.columns);
+		}
 		return result;
 	}
-	
+
+	/**
+	 * @return a copy of the rows from startRow to endRow (inclusive), see {@link #rowsView(int, int)}
+	 *         to share the storage instead
+	 */
 	public Matrix rows(int startRow, int endRow) {
-		return new Matrix(this.matrix.getSubMatrix(startRow, endRow, 0, columns - 1));
+		return subMatrix(startRow, endRow, 0, columns - 1);
+	}
+
+	/**
+	 * @return a view of the rows from startRow to endRow (inclusive) sharing the storage of this matrix
+	 */
+	@Override
+	public Matrix rowsView(int startRow, int endRow) {
+		checkRowRange(startRow, endRow);
+		return new Matrix(data, index(startRow, 0), rowStride, columnStride, endRow - startRow + 1, columns);
+	}
+
+	/**
+	 * @return a view of the given block sharing the storage of this matrix
+	 */
+	public Matrix subMatrixView(int startRow, int endRow, int startColumn, int endColumn) {
+		checkRowRange(startRow, endRow);
+		checkColumnRange(startColumn, endColumn);
+		return new Matrix(data, index(startRow, startColumn), rowStride, columnStride, endRow - startRow + 1, endColumn - startColumn + 1);
+	}
+
+	/**
+	 * @return a rows x columns view of the entries of this matrix (read row by row) from the given
+	 *         one, e.g. to lay several matrices out in a single buffer
+	 */
+	public Matrix reshapedView(int start, int rows, int columns) {
+
+		if (columnStride != 1 || rowStride != this.columns)
+			throw new IllegalStateException("Only a matrix whose entries are contiguous can be reshaped");
+		if (rows < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, rows);
+		if (columns < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, columns);
+
+		final long end = (long) start + (long) rows * columns;
+
+		if (start < 0 || end > (long) this.rows * this.columns)
+			throw new OutOfRangeException(end, 0, this.rows * this.columns);
+
+		return new Matrix(data, offset + start, columns, 1, rows, columns);
+	}
+
+	/**
+	 * @return a view of the columns from startColumn to endColumn (inclusive) sharing the storage of
+	 *         this matrix
+	 */
+	public Matrix columnsView(int startColumn, int endColumn) {
+		return subMatrixView(0, rows - 1, startColumn, endColumn);
+	}
+
+	/**
+	 * @return a view of a row sharing the storage of this matrix
+	 */
+	public Matrix rowView(int row) {
+		return rowsView(row, row);
 	}
-	
+
+	/**
+	 * @return a view of a column sharing the storage of this matrix
+	 */
+	public Matrix columnView(int column) {
+		return columnsView(column, column);
+	}
+
+	/**
+	 * @return a copy of the columns from startColumn to endColumn (inclusive), see
+	 *         {@link #columnsView(int, int)} to share the storage instead
+	 */
 	public Matrix columns(int startColumn, int endColumn) {
-		return new Matrix(this.matrix.getSubMatrix(0, rows - 1, startColumn, endColumn));
+		return subMatrix(0, rows - 1, startColumn, endColumn);
 	}
-	
+
 	public Matrix subMatrix(int startRow, int startColumn) {
-		return new Matrix(this.matrix.getSubMatrix(startRow, rows - 1, startColumn, columns - 1));
+		return subMatrix(startRow, rows - 1, startColumn, columns - 1);
 	}
-	
+
+	/**
+	 * @return a copy of the given block, see {@link #subMatrixView(int, int, int, int)} to share the
+	 *         storage instead
+	 */
 	public Matrix subMatrix(int startRow, int endRow, int startColumn, int endColumn) {
-		return new Matrix(this.matrix.getSubMatrix(startRow, endRow, startColumn, endColumn));
+
+		checkRowRange(startRow, endRow);
+		checkColumnRange(startColumn, endColumn);
+
+		Matrix result = new Matrix(endRow - startRow + 1, endColumn - startColumn + 1);
+
+		for (int r = 0; r < result.rows; r++) {
+			int i = index(startRow + r, startColumn), k = r * result.columns;
+
+			if (columnStride == 1)
+				System.arraycopy(data, i, result.data, k, result.columns);
+			else
+				for (int c = 0; c < result.columns; c++)
+					result.data[k + c] = data[i + c * columnStride];
+		}
+
+		return result;
 	}
-	
+
+	@Override
 	public double get(int row, int column) {
-		return this.matrix.getEntry(row, column);
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		return data[index(row, column)];
 	}
-	
+
+	@Override
+	public void readRow(int row, int column, int length, double[] destination, int destinationOffset) {
+		checkRowIndex(row);
+		checkColumnRange(column, column + length - 1);
+
+		if (columnStride == 1)
+			System.arraycopy(data, index(row, column), destination, destinationOffset, length);
+		else
+			for (int c = 0, i = index(row, column); c < length; c++, i += columnStride)
+				destination[destinationOffset + c] = data[i];
+	}
+
 	public Matrix getRow(int row) {
-		return new Matrix(this.matrix.getRowMatrix(row));
+		return subMatrix(row, row, 0, columns - 1);
 	}
-	
+
 	public Matrix getColumn(int column) {
-		return new Matrix(this.matrix.getColumnMatrix(column));
+		return subMatrix(0, rows - 1, column, column);
 	}
-	
+
 	public void set(int row, int column, double value) {
-		this.matrix.setEntry(row, column, value);
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		data[index(row, column)] = value;
 	}
-	
+
 	public void setRow(int row, double[] array) {
-		this.matrix.setRow(row, array);
+		checkRowIndex(row);
+
+		if (array.length != columns)
+			throw new DimensionMismatchException(array.length, columns);
+
+		for (int c = 0; c < columns; c++)
+			data[index(row, c)] = array[c];
 	}
-	
+
 	public void setRow(int row, Matrix rowMatrix) {
-		this.matrix.setRowMatrix(row, rowMatrix.matrix);
+		checkRowIndex(row);
+
+		if (rowMatrix.rows != 1 || rowMatrix.columns != columns)
+			throw new MatrixDimensionMismatchException(rowMatrix.rows, rowMatrix.columns, 1, columns);
+
+		for (int c = 0; c < columns; c++)
+			data[index(row, c)] = rowMatrix.data[rowMatrix.index(0, c)];
 	}
-	
+
 	public void setColumn(int column, double[] array) {
-		this.matrix.setColumn(column, array);
+		checkColumnIndex(column);
+
+		if (array.length != rows)
+			throw new DimensionMismatchException(array.length, rows);
+
+		for (int r = 0; r < rows; r++)
+			data[index(r, column)] = array[r];
 	}
-	
-	public void setColumn(int column, Matrix columnMatrix) {	
-		this.matrix.setColumnMatrix(column, columnMatrix.matrix);
+
+	public void setColumn(int column, Matrix columnMatrix) {
+		checkColumnIndex(column);
+
+		if (columnMatrix.rows != rows || columnMatrix.columns != 1)
+			throw new MatrixDimensionMismatchException(columnMatrix.rows, columnMatrix.columns, rows, 1);
+
+		for (int r = 0; r < rows; r++)
+			data[index(r, column)] = columnMatrix.data[columnMatrix.index(r, 0)];
 	}
-	
+
+	/**
+	 * @return a copy of the given rows, see {@link FeatureMatrix#gatherRows(int[], int, int)}
+	 */
+	@Override
+	public Matrix gatherRows(int[] indexes, int offset, int length) {
+
+		Matrix result = new Matrix(length, columns);
+
+		for (int r = 0; r < length; r++)
+			readRow(indexes[offset + r], 0, columns, result.data, r * columns);
+
+		return result;
+	}
+
 	public void setRowWithValue(int row, double value) {
-		
+		checkRowIndex(row);
+
 		for (int c = 0; c < columns; c++)
-			this.matrix.setEntry(row, c, value);
+			data[index(row, c)] = value;
 	}
-	
+
 	public void setColumnWithValue(int column, double value) {
-		
+		checkColumnIndex(column);
+
 		for (int r = 0; r < rows; r++)
-			this.matrix.setEntry(r, column, value);
+			data[index(r, column)] = value;
 	}
-	
+
+	/**
+	 * @return a copy of the entries as an array of rows (e.g. for the .mat export)
+	 */
 	public double[][] getRawData() {
-		return this.matrix.getData();
+
+		double[][] result = new double[rows][columns];
+
+		for (int r = 0; r < rows; r++)
+			for (int c = 0; c < columns; c++)
+				result[r][c] = data[index(r, c)];
+
+		return result;
+	}
+
+	/**
+	 * @return a commons-math copy of this matrix, for interoperability only
+	 */
+	public RealMatrix toRealMatrix() {
+		return new Array2DRowRealMatrix(getRawData(), false);
 	}
-	
+
+	@Override
+	public Matrix toMatrix() {
+		return this;
+	}
+
 	public Stream<Double> stream() {
 		return StreamSupport.stream(spliterator(), false);
 	}
-	
+
+	/**
+	 * Runs the action on a view of each row
+	 */
 	public void forEachRow(Consumer<Matrix> action) {
         Objects.requireNonNull(action);
-        for (int r = 0; r < rows; r++) 
-            action.accept(getRow(r));
+        for (int r = 0; r < rows; r++)
+            action.accept(rowView(r));
     }
-	
+
+	/**
+	 * Runs the action on a view of each column
+	 */
 	public void forEachColumn(Consumer<Matrix> action) {
         Objects.requireNonNull(action);
-        for (int c = 0; c < columns; c++) 
-            action.accept(getColumn(c));
+        for (int c = 0; c < columns; c++)
+            action.accept(columnView(c));
     }
-	
-	public Matrix applyOnEach(Function<Double, Double> function) {
-		
+
+	public Matrix applyOnEach(DoubleUnaryOperator function) {
+
+		Matrix a = contiguous();
 		Matrix result = new Matrix(rows, columns);
-		
-		for (int r = 0; r < rows; r++) 
+
+		for (int r = 0; r < rows; r++) {
+			int i = a.offset + r * a.rowStride, k = r * columns;
 			for (int c = 0; c < columns; c++)
-				result.set(r, c, function.apply(matrix.getEntry(r, c)));
-		
+				result.data[k + c] = function.applyAsDouble(a.data[i + c]);
+		}
 		return result;
 	}
 
+	public Matrix applyInPlace(DoubleUnaryOperator function) {
+
+		for (int r = 0; r < rows; r++) {
+			int i = offset + r * rowStride;
+			for (int c = 0; c < columns; c++, i += columnStride)
+				data[i] = function.applyAsDouble(data[i]);
+		}
+		return this;
+	}
+
 	@Override
 	public Iterator<Double> iterator() {
 		return new Iterator<Double>() {
 
-			private int index = 0;
-			
+			private int row = 0;
+
+			private int column = 0;
+
 			@Override
 			public boolean hasNext() {
-				return index < rows * columns;
+				return row < rows;
 			}
 
 			@Override
-			public Double next() { 
-				return matrix.getEntry(index / columns, index++ % columns);
+			public Double next() {
+
+				if (row >= rows)
+					throw new NoSuchElementException();
+
+				double value = data[index(row, column)];
+
+				if (++column == columns) {
+					column = 0;
+					row++;
+				}
+				return value;
 			}
 		};
 	}
@@ -459,7 +763,13 @@ public class Matrix implements Iterable<Double> {
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((matrix == null) ? 0 : matrix.hashCode());
+
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				long bits = Double.doubleToLongBits(data[index(r, c)]);
+				result = prime * result + (int) (bits ^ (bits >>> 32));
+			}
+		}
 		result = prime * result + rows;
 		result = prime * result + columns;
 		return result;
@@ -478,8 +788,10 @@ public class Matrix implements Iterable<Double> {
 			return false;
 		if (columns != other.columns)
 			return false;
-		if (!Objects.deepEquals(matrix.getData(), other.matrix.getData()))
-			return false;
+		for (int r = 0; r < rows; r++)
+			for (int c = 0; c < columns; c++)
+				if (Double.doubleToLongBits(data[index(r, c)]) != Double.doubleToLongBits(other.data[other.index(r, c)]))
+					return false;
 		return true;
 	}
 
@@ -494,12 +806,12 @@ public class Matrix implements Iterable<Double> {
 		}
 		final int limitedRows = rows > 10 ? 10 : rows;
 		final int limitedColumns = columns > 10 ? 10 : columns;
-		
+
 		builder.append("[" + rows + ";" + columns + "]\n");
 		for (int r = 0; r < limitedRows; r++) {
 			builder.append('\t');
 			for (int c = 0; c < limitedColumns; c++) {
-				builder.append(f.format((matrix.getEntry(r, c))));
+				builder.append(f.format((data[index(r, c)])));
 				builder.append('\t');
 			}
 			builder.append(limitedColumns < columns ? " ...\n" : '\n');
@@ -517,108 +829,328 @@ public class Matrix implements Iterable<Double> {
 		Random rng = new Random();
 		Matrix result = new Matrix(rows, columns);
 
-		for (int r = 0; r < rows; r++)
-			for (int c = 0; c < columns; c++)
-				result.matrix.setEntry(r, c, min + (max - min) * rng.nextDouble());
-		
+		for (int i = 0; i < result.data.length; i++)
+			result.data[i] = min + (max - min) * rng.nextDouble();
+
 		return result;
 	}
-	
+
 	public static final Matrix zeros(int rows, int columns) {
 		return new Matrix(rows, columns, 0d);
 	}
-	
+
 	public static final Matrix ones(int rows, int columns) {
 		return new Matrix(rows, columns, 1d);
 	}
-	
+
+	public static final Matrix identity(int size) {
+
+		Matrix result = new Matrix(size, size);
+
+		for (int i = 0; i < size; i++)
+			result.data[i * size + i] = 1d;
+
+		return result;
+	}
+
 	public static final Matrix sum(Matrix m) {
 		return m.isRow() ? sumByRow(m) : sumByColumn(m);
 	}
-	
+
 	public static final Matrix sumByColumn(Matrix m) {
-		
-		Matrix result = new Matrix(1, m.columns);
-		
-		for (int c = 0; c < m.columns; c++)
-			result.set(0, c, StatUtils.sum(m.matrix.getColumn(c)));
-		
-		return result;
+		return sumByColumn(m, new Matrix(1, m.columns));
+	}
+
+	/**
+	 * dest = the sums of the columns of m, as a row
+	 */
+	public static final Matrix sumByColumn(Matrix m, Matrix dest) {
+		checkDestination(dest, 1, m.columns);
+
+		Matrix a = m.contiguous();
+		dest.fill(0d);
+
+		for (int r = 0; r < m.rows; r++) {
+			int i = a.offset + r * a.rowStride;
+			for (int c = 0, k = dest.offset; c < m.columns; c++, k += dest.columnStride)
+				dest.data[k] += a.data[i + c];
+		}
+		return dest;
 	}
-	
+
 	public static final Matrix sumByRow(Matrix m) {
-		
-		Matrix result = new Matrix(m.rows, 1);
-		
-		for (int r = 0; r < m.rows; r++)
-			result.set(r, 0, StatUtils.sum(m.matrix.getRow(r)));
-		
-		return result;
+		return Reductions.sumByRow(m, new Matrix(m.rows, 1));
 	}
-	
+
+	/**
+	 * @return the sum of all the entries (compensated, so its error does not grow with the size of m)
+	 */
 	public static final double sumAll(Matrix m) {
-		
-		double sum = 0;
-		for (double elem : m)
-			sum += elem;
-		return sum;
+		return Reductions.sum(m);
 	}
-	
+
+	public static final double sumOfSquares(Matrix m) {
+		return Reductions.sumOfSquares(m);
+	}
+
+	/**
+	 * @return the cross-entropy -sum(y log(h) + (1 - y) log(1 - h)) of the predictions h and the
+	 *         binary labels y, computed in one pass without any temporary matrix
+	 */
+	public static final double crossEntropy(Matrix h, Matrix y) {
+		h.checkSameDimensions(y);
+		return Reductions.crossEntropy(h, y);
+	}
+
 	public static final Matrix log(Matrix m) {
 		return m.applyOnEach(d -> Math.log(d));
 	}
-	
+
 	public static final Matrix binaryMatrix(Matrix rowIntegerMatrix, int numValues) {
-		
-		if (!rowIntegerMatrix.isRow()) 
+
+		if (!rowIntegerMatrix.isRow())
 			throw new DimensionMismatchException(rowIntegerMatrix.rows, 1);
-		
+
 		Matrix result = new Matrix(numValues, rowIntegerMatrix.columns);
-		
+
 		for (int r = 0; r < numValues; r++)
 			for (int c = 0; c < rowIntegerMatrix.columns; c++)
-				result.set(r, c, r == rowIntegerMatrix.get(0, c) ? 1d : 0d);
-		
+				result.data[r * result.columns + c] = r == rowIntegerMatrix.get(0, c) ? 1d : 0d;
+
 		return result;
 	}
-	
+
 	public static final Matrix reshape(Matrix rowMatrix, int rows, int columns) {
-		
+
 		Matrix result = new Matrix(rows, columns);
-		
+
 		for (int c = 0; c < rows * columns; c++)
-			result.set(c / columns, c % columns, rowMatrix.get(0, c));
-		
+			result.data[c] = rowMatrix.get(0, c);
+
 		return result;
 	}
-	
+
+	/**
+	 * dest = a + b; dest may be a or b
+	 */
+	public static final Matrix add(Matrix a, Matrix b, Matrix dest) {
+		a.checkSameDimensions(b);
+		checkDestination(dest, a.rows, a.columns);
+		return linear(a, 1d, b, dest);
+	}
+
+	/**
+	 * dest = a - b; dest may be a or b
+	 */
+	public static final Matrix subtract(Matrix a, Matrix b, Matrix dest) {
+		a.checkSameDimensions(b);
+		checkDestination(dest, a.rows, a.columns);
+		return linear(a, -1d, b, dest);
+	}
+
+	/**
+	 * dest = a .* b; dest may be a or b
+	 */
+	public static final Matrix hadamard(Matrix a, Matrix b, Matrix dest) {
+		a.checkSameDimensions(b);
+		checkDestination(dest, a.rows, a.columns);
+
+		for (int r = 0; r < a.rows; r++) {
+			int i = a.offset + r * a.rowStride, j = b.offset + r * b.rowStride, k = dest.offset + r * dest.rowStride;
+
+			if (unitStrides(a, b, dest))
+				for (int c = 0; c < a.columns; c++)
+					dest.data[k + c] = a.data[i + c] * b.data[j + c];
+			else
+				for (int c = 0; c < a.columns; c++, i += a.columnStride, j += b.columnStride, k += dest.columnStride)
+					dest.data[k] = a.data[i] * b.data[j];
+		}
+		return dest;
+	}
+
+	/**
+	 * dest = value * a; dest may be a
+	 */
+	public static final Matrix scale(Matrix a, double value, Matrix dest) {
+		checkDestination(dest, a.rows, a.columns);
+
+		for (int r = 0; r < a.rows; r++) {
+			int i = a.offset + r * a.rowStride, k = dest.offset + r * dest.rowStride;
+
+			if (unitStrides(a, a, dest))
+				for (int c = 0; c < a.columns; c++)
+					dest.data[k + c] = a.data[i + c] * value;
+			else
+				for (int c = 0; c < a.columns; c++, i += a.columnStride, k += dest.columnStride)
+					dest.data[k] = a.data[i] * value;
+		}
+		return dest;
+	}
+
+	/**
+	 * dest = a . b; dest must not share its storage with a or b
+	 */
+	public static final Matrix multiply(Matrix a, Matrix b, Matrix dest) {
+
+		if (a.columns != b.rows)
+			throw new DimensionMismatchException(b.rows, a.columns);
+
+		return gemm(a, b, dest);
+	}
+
+	/**
+	 * dest = a . b<sup>T</sup>; dest must not share its storage with a or b
+	 */
+	public static final Matrix multiplyTransposed(Matrix a, Matrix b, Matrix dest) {
+
+		if (a.columns != b.columns)
+			throw new DimensionMismatchException(b.columns, a.columns);
+
+		return gemm(a, b.transposedView(), dest);
+	}
+
+	/**
+	 * dest = a<sup>T</sup> . b; dest must not share its storage with a or b
+	 */
+	public static final Matrix transposeMultiply(Matrix a, Matrix b, Matrix dest) {
+
+		if (a.rows != b.rows)
+			throw new DimensionMismatchException(b.rows, a.rows);
+
+		return gemm(a.transposedView(), b, dest);
+	}
+
 	public static void main(String[] args) {
 		Matrix m = new Matrix("1 2 3 4 5 6 7 8 9");
-		
+
 		System.out.println(reshape(m, 3, 3));
 	}
-	
-	private static final int indexMax(double[] array) {
-		double largest = array[0];
-		int index = 0;
-		
-		for (int i = 1; i < array.length; i++)
-			if (array[i] >= largest) {
-				largest = array[i];
-				index = i;
-			}
-		return index;
-	}
-	
-	private static final int indexMin(double[] array) {
-		double lowest = array[0];
-		int index = 0;
-		
-		for (int i = 1; i < array.length; i++)
-			if (array[i] < lowest) {
-				lowest = array[i];
-				index = i;
-			}
-		return index;
+
+	private static Matrix linear(Matrix a, double alpha, Matrix b, Matrix dest) {
+
+		for (int r = 0; r < a.rows; r++) {
+			int i = a.offset + r * a.rowStride, j = b.offset + r * b.rowStride, k = dest.offset + r * dest.rowStride;
+
+			if (unitStrides(a, b, dest))
+				for (int c = 0; c < a.columns; c++)
+					dest.data[k + c] = a.data[i + c] + alpha * b.data[j + c];
+			else
+				for (int c = 0; c < a.columns; c++, i += a.columnStride, j += b.columnStride, k += dest.columnStride)
+					dest.data[k] = a.data[i] + alpha * b.data[j];
+		}
+		return dest;
+	}
+
+	private static Matrix shift(Matrix a, double value, Matrix dest) {
+
+		for (int r = 0; r < a.rows; r++) {
+			int i = a.offset + r * a.rowStride, k = dest.offset + r * dest.rowStride;
+
+			if (unitStrides(a, a, dest))
+				for (int c = 0; c < a.columns; c++)
+					dest.data[k + c] = a.data[i + c] + value;
+			else
+				for (int c = 0; c < a.columns; c++, i += a.columnStride, k += dest.columnStride)
+					dest.data[k] = a.data[i] + value;
+		}
+		return dest;
+	}
+
+	private static Matrix gemm(Matrix a, Matrix b, Matrix dest) {
+		checkDestination(dest, a.rows, b.columns);
+
+		if (dest.data == a.data || dest.data == b.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		if (dest.columnStride == 1)
+			Gemm.multiply(a, b, dest, false);
+		else
+			dest.copyFrom(a.multiply(b));
+
+		return dest;
+	}
+
+	private static boolean unitStrides(Matrix a, Matrix b, Matrix dest) {
+		return a.columnStride == 1 && b.columnStride == 1 && dest.columnStride == 1;
+	}
+
+	private static void checkDestination(Matrix dest, int rows, int columns) {
+		if (dest.rows != rows || dest.columns != columns)
+			throw new MatrixDimensionMismatchException(dest.rows, dest.columns, rows, columns);
+	}
+
+	private int index(int row, int column) {
+		return offset + row * rowStride + column * columnStride;
+	}
+
+	/**
+	 * @return this matrix if its rows are contiguous, or a compact copy of it
+	 */
+	private Matrix contiguous() {
+		return columnStride == 1 ? this : copy();
+	}
+
+	private Matrix flat(int newRows, int newColumns) {
+
+		Matrix a = contiguous();
+		Matrix result = new Matrix(newRows, newColumns);
+
+		for (int r = 0; r < rows; r++)
+			System.arraycopy(a.data, a.offset + r * a.rowStride, result.data, r * columns, columns);
+
+		return result;
+	}
+
+	private void checkSameDimensions(Matrix other) {
+		if (rows != other.rows || columns != other.columns)
+			throw new MatrixDimensionMismatchException(rows, columns, other.rows, other.columns);
+	}
+
+	private void checkRowIndex(int row) {
+		if (row < 0 || row >= rows)
+			throw new OutOfRangeException(LocalizedFormats.ROW_INDEX, row, 0, rows - 1);
+	}
+
+	private void checkColumnIndex(int column) {
+		if (column < 0 || column >= columns)
+			throw new OutOfRangeException(LocalizedFormats.COLUMN_INDEX, column, 0, columns - 1);
+	}
+
+	private void checkRowRange(int startRow, int endRow) {
+		checkRowIndex(startRow);
+		checkRowIndex(endRow);
+		if (endRow < startRow)
+			throw new NumberIsTooSmallException(LocalizedFormats.INITIAL_ROW_AFTER_FINAL_ROW, endRow, startRow, false);
+	}
+
+	private void checkColumnRange(int startColumn, int endColumn) {
+		checkColumnIndex(startColumn);
+		checkColumnIndex(endColumn);
+		if (endColumn < startColumn)
+			throw new NumberIsTooSmallException(LocalizedFormats.INITIAL_COLUMN_AFTER_FINAL_COLUMN, endColumn, startColumn, false);
+	}
+
+	private static final double[] allocate(int rows, int columns) {
+
+		if (rows < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, rows);
+		if (columns < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, columns);
+
+		return new double[Math.multiplyExact(rows, columns)];
+	}
+
+	private static final double[][] parse(String content) {
+
+		String[] contentRows = content.split(";");
+		double[][] result = new double[contentRows.length][];
+
+		for (int r = 0; r < contentRows.length; r++) {
+			String[] numbers = contentRows[r].trim().split(" ");
+			result[r] = new double[numbers.length];
+			for (int c = 0; c < numbers.length; c++)
+				result[r][c] = Double.parseDouble(numbers[c]);
+		}
+		return result;
 	}
 }
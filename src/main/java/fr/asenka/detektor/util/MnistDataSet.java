@@ -1,23 +1,36 @@
 package fr.asenka.detektor.util;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
 
 public class MnistDataSet extends DataSet {
 
 	private static final int IMAGE_SIZE = 28 * 28;
 	
+	public static final double PIXEL_SCALE = 1d / 255d;
+	
+	private static final Path IMAGES_FILE = Paths.get("src/main/resources/train-images-idx3-ubyte.gz");
+	
+	private static final Path LABELS_FILE = Paths.get("src/main/resources/train-labels-idx1-ubyte.gz");
+	
+	public MnistDataSet() {
+		super();
+	}
+	
+	public MnistDataSet(FeatureStorage storage) {
+		super(storage);
+	}
+	
 	@Override
 	protected void loadData() {
 		System.out.println("Loading MNIST data...");
 
 		try {
-			List<int[][]> images = MnistReader.getImages(Paths.get("src/main/resources/train-images-idx3-ubyte.gz"));
-			int[] labels = MnistReader.getLabels(Paths.get("src/main/resources/train-labels-idx1-ubyte.gz"));
-			
-			X = prepareImagesMatrix(images);
-			y = prepareLabelsMatrix(labels);
+			loadCached("mnist-train", "scale=" + PIXEL_SCALE, () -> {
+				X = MnistReader.getImagesMatrix(IMAGES_FILE, PIXEL_SCALE, storage);
+				y = MnistReader.getLabelsMatrix(LABELS_FILE);
+			}, IMAGES_FILE, LABELS_FILE);
 
 			System.out.println(X.rows() + " images loaded.");
 			
@@ -30,25 +43,4 @@ public class MnistDataSet extends DataSet {
 	public int getImageSize() {
 		return IMAGE_SIZE;
 	}
-
-	private static final Matrix prepareImagesMatrix(List<int[][]> images) {
-
-		Matrix result = new Matrix(images.size(), IMAGE_SIZE);
-
-		for (int i = 0; i < images.size(); i++) {
-			Matrix image = new Matrix(images.get(i));
-			result.setRow(i, image.flatRow());
-		}
-		return result.normalize();
-	}
-
-	private static final Matrix prepareLabelsMatrix(int[] labels) {
-
-		Matrix result = new Matrix(labels.length, 1);
-
-		for (int i = 0; i < labels.length; i++)
-			result.set(i, 0, labels[i]);
-
-		return result;
-	}
 }
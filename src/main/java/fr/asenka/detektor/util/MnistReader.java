@@ -1,73 +1,129 @@
 package fr.asenka.detektor.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.nio.ByteBuffer;
 
+/**
+ * Reads the MNIST files in the IDX format. The files are streamed (gzipped files) or
+ * memory-mapped (uncompressed files) through {@link IdxFile}, so they are never fully loaded in
+ * a byte array.
+ */
 public final class MnistReader {
 
+	static final int LABELS_MAGIC_NUMBER = 2049;
+
+	static final int IMAGES_MAGIC_NUMBER = 2051;
+
 	public static final int[] getLabels(Path labelsFile) throws IOException {
 		
-		ByteBuffer buffer = ByteBuffer.wrap(decompressGzip(Files.readAllBytes(labelsFile)));
-		
-		if (buffer.getInt() != 2049) 
-			throw new IOException("Not a labels file");
-		
-		int numLabels = buffer.getInt();
-		int[] labels = new int[numLabels];
-		
-		for (int i = 0; i < numLabels; i++)
-			labels[i] = buffer.get() & 0xFF;
-		
-		return labels;
+		try (IdxFile file = IdxFile.open(labelsFile, LABELS_MAGIC_NUMBER, "a labels")) {
+			
+			int numLabels = file.dimension(0);
+			byte[] buffer = new byte[numLabels];
+			int[] labels = new int[numLabels];
+			
+			file.read(buffer, 0, numLabels);
+			
+			for (int i = 0; i < numLabels; i++)
+				labels[i] = buffer[i] & 0xFF;
+			
+			return labels;
+		}
 	}
 	
-	public static final List<int[][]> getImages(Path imagesFile) throws IOException {
-		
-		ByteBuffer buffer = ByteBuffer.wrap(decompressGzip(Files.readAllBytes(imagesFile)));
-		
-		if (buffer.getInt() != 2051)
-			throw new IOException("Not an images file");
-		
-		int numImages = buffer.getInt();
-		int numRows = buffer.getInt();
-		int numColumns = buffer.getInt();
+	/**
+	 * Reads the labels in a column matrix, decoded straight into its storage.
+	 */
+	public static final Matrix getLabelsMatrix(Path labelsFile) throws IOException {
 		
-		List<int[][]> images = new ArrayList<>();
+		try (IdxFile file = IdxFile.open(labelsFile, LABELS_MAGIC_NUMBER, "a labels")) {
+			
+			Matrix labels = new Matrix(file.dimension(0), 1);
+			file.readUnsigned(labels.data, 0, labels.rows(), 1d);
+			return labels;
+		}
+	}
+	
+	/**
+	 * Reads the images in a single matrix, one flattened image per row. The pixels are decoded
+	 * straight into the storage of the matrix and multiplied by scale in the same pass (e.g. 1/255
+	 * to get values between 0 and 1).
+	 */
+	public static final Matrix getImagesMatrix(Path imagesFile, double scale) throws IOException {
+		return (Matrix) getImagesMatrix(imagesFile, scale, FeatureStorage.DOUBLE);
+	}
+	
+	/**
+	 * Same as {@link #getImagesMatrix(Path, double)}, in the given storage format.
+	 */
+	public static final FeatureMatrix getImagesMatrix(Path imagesFile, double scale, FeatureStorage storage) throws IOException {
 		
-		for (int i = 0; i < numImages; i++) {	
-			int[][] image = new int[numRows][];
+		try (IdxFile file = IdxFile.open(imagesFile, IMAGES_MAGIC_NUMBER, "an images")) {
 			
-			for (int row = 0; row < numRows; row++) {
-				image[row] = new int[numColumns];
-				
-				for (int col = 0; col < numColumns; col++)
-					image[row][col] = buffer.get() & 0xFF;
+			int numImages = file.dimension(0);
+			int imageSize = file.itemSize();
+			
+			switch (storage) {
+			case FLOAT:
+				FloatMatrix floatImages = new FloatMatrix(numImages, imageSize);
+				file.readUnsigned(floatImages.data, 0, numImages * imageSize, scale);
+				return floatImages;
+			case UINT8:
+				// The raw pixels are kept as they are, the scale is applied when they are read
+				ByteMatrix pixels = new ByteMatrix(numImages, imageSize, scale);
+				file.read(pixels.data, 0, numImages * imageSize);
+				return pixels;
+			case SPARSE:
+				// Decoded image by image, only the non-zero pixels are kept
+				SparseMatrix.Builder sparseImages = SparseMatrix.builder(numImages, imageSize, (int) Math.min(Integer.MAX_VALUE - 8, (long) numImages * imageSize / 4));
+				byte[] image = new byte[imageSize];
+				for (int i = 0; i < numImages; i++) {
+					file.read(image, 0, imageSize);
+					sparseImages.addRow(image, 0, scale);
+				}
+				return sparseImages.build();
+			case OFF_HEAP:
+				OffHeapMatrix offHeapImages = new OffHeapMatrix(numImages, imageSize);
+				float[] pixelRow = new float[imageSize];
+				for (int i = 0; i < numImages; i++) {
+					file.readUnsigned(pixelRow, 0, imageSize, scale);
+					offHeapImages.setRow(i, pixelRow, 0);
+				}
+				return offHeapImages;
+			default:
+				Matrix images = new Matrix(numImages, imageSize);
+				file.readUnsigned(images.data, 0, numImages * imageSize, scale);
+				return images;
 			}
-			images.add(image);
 		}
-		return images;
 	}
-
-	private static final byte[] decompressGzip(final byte[] gzipData) throws IOException {
+	
+	public static final List<int[][]> getImages(Path imagesFile) throws IOException {
 		
-		try(ByteArrayInputStream stream = new ByteArrayInputStream(gzipData); 
-			GZIPInputStream gzipStream = new GZIPInputStream(stream); 
-			ByteArrayOutputStream output = new ByteArrayOutputStream()) {
-			
-			byte[] buffer = new byte[8192];
-			int n;
+		try (IdxFile file = IdxFile.open(imagesFile, IMAGES_MAGIC_NUMBER, "an images")) {
+		
+			int numImages = file.dimension(0);
+			int numRows = file.dimension(1);
+			int numColumns = file.dimension(2);
 			
-			while((n = gzipStream.read(buffer)) > 0)
-				output.write(buffer, 0, n);
+			byte[] pixels = new byte[numRows * numColumns];
+			List<int[][]> images = new ArrayList<>(numImages);
 			
-			return output.toByteArray();
+			for (int i = 0; i < numImages; i++) {
+				file.read(pixels, 0, pixels.length);
+				int[][] image = new int[numRows][];
+				
+				for (int row = 0; row < numRows; row++) {
+					image[row] = new int[numColumns];
+					
+					for (int col = 0; col < numColumns; col++)
+						image[row][col] = pixels[row * numColumns + col] & 0xFF;
+				}
+				images.add(image);
+			}
+			return images;
 		}
 	}
 }
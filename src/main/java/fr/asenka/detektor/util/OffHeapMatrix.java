@@ -0,0 +1,255 @@
+package fr.asenka.detektor.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+
+/**
+ * Matrix of features stored out of the Java heap, as little-endian floats in direct buffers or in a
+ * memory-mapped file (see {@link DataSetCache}), so that the garbage collector never scans nor
+ * copies them and a data set can be bigger than the heap.
+ *
+ * A buffer holds at most 2 GB, so the rows are stored by chunks of whole rows, one buffer per
+ * chunk. Gathering rows (to shuffle the examples) only copies their indexes in the stored rows,
+ * kept on the heap, which also works on a file mapped read-only; a view on consecutive rows shares
+ * the buffers and the indexes.
+ */
+public final class OffHeapMatrix implements FeatureMatrix {
+
+	private static final long CHUNK_SIZE = 1L << 28; // floats (1 GB)
+
+	private final FloatBuffer[] chunks;
+	private final int rowsPerChunk;
+	private final int[] storedRows; // stored row of each row, from first; null if stored in order
+	private final int first;
+	private final int rows;
+	private final int columns;
+
+	private OffHeapMatrix(FloatBuffer[] chunks, int rowsPerChunk, int[] storedRows, int first, int rows, int columns) {
+		this.chunks = chunks;
+		this.rowsPerChunk = rowsPerChunk;
+		this.storedRows = storedRows;
+		this.first = first;
+		this.rows = rows;
+		this.columns = columns;
+	}
+
+	/**
+	 * Allocates the matrix (filled with zeros) in direct buffers
+	 */
+	public OffHeapMatrix(int rows, int columns) {
+		this(allocate(rows, columns), rowsPerChunk(columns), null, 0, rows, columns);
+	}
+
+	public OffHeapMatrix(FeatureMatrix matrix) {
+		this(matrix.rows(), matrix.columns());
+
+		final double[] row = new double[columns];
+
+		for (int r = 0; r < rows; r++) {
+			matrix.readRow(r, 0, columns, row, 0);
+			FloatBuffer chunk = chunks[r / rowsPerChunk];
+
+			for (int c = 0, i = (r % rowsPerChunk) * columns; c < columns; c++)
+				chunk.put(i + c, (float) row[c]);
+		}
+	}
+
+	/**
+	 * Maps rows x columns little-endian floats of a file, stored row by row from the given position.
+	 * The mapping stays valid once the channel is closed; in the READ_ONLY mode the entries cannot be
+	 * set but the rows can still be gathered.
+	 */
+	static OffHeapMatrix map(FileChannel channel, MapMode mode, long position, int rows, int columns) throws IOException {
+
+		if (rows < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, rows);
+		if (columns < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, columns);
+
+		final int rowsPerChunk = rowsPerChunk(columns);
+		final FloatBuffer[] chunks = new FloatBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+
+		for (int k = 0; k < chunks.length; k++) {
+			long chunkRows = Math.min(rowsPerChunk, rows - (long) k * rowsPerChunk);
+			long start = position + 4L * k * rowsPerChunk * columns;
+			chunks[k] = channel.map(mode, start, 4L * chunkRows * columns).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		}
+		return new OffHeapMatrix(chunks, rowsPerChunk, null, 0, rows, columns);
+	}
+
+	@Override
+	public int rows() {
+		return rows;
+	}
+
+	@Override
+	public int columns() {
+		return columns;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+
+		final int stored = stored(row);
+		return chunks[stored / rowsPerChunk].get((stored % rowsPerChunk) * columns + column);
+	}
+
+	public void set(int row, int column, double value) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+
+		final int stored = stored(row);
+		chunks[stored / rowsPerChunk].put((stored % rowsPerChunk) * columns + column, (float) value);
+	}
+
+	/**
+	 * Copies a row of floats into the matrix
+	 */
+	void setRow(int row, float[] values, int offset) {
+		checkRowIndex(row);
+
+		final int stored = stored(row);
+		final FloatBuffer chunk = chunks[stored / rowsPerChunk];
+
+		for (int c = 0, i = (stored % rowsPerChunk) * columns; c < columns; c++)
+			chunk.put(i + c, values[offset + c]);
+	}
+
+	@Override
+	public void readRow(int row, int column, int length, double[] destination, int offset) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		checkColumnIndex(column + length - 1);
+
+		final int stored = stored(row);
+		final FloatBuffer chunk = chunks[stored / rowsPerChunk];
+
+		for (int c = 0, i = (stored % rowsPerChunk) * columns + column; c < length; c++)
+			destination[offset + c] = chunk.get(i + c);
+	}
+
+	@Override
+	public OffHeapMatrix rowsView(int startRow, int endRow) {
+		checkRowIndex(startRow);
+		checkRowIndex(endRow);
+		if (endRow < startRow)
+			throw new NumberIsTooSmallException(LocalizedFormats.INITIAL_ROW_AFTER_FINAL_ROW, endRow, startRow, false);
+
+		return new OffHeapMatrix(chunks, rowsPerChunk, storedRows, first + startRow, endRow - startRow + 1, columns);
+	}
+
+	/**
+	 * @return a matrix sharing the buffers, with its own indexes of the stored rows
+	 */
+	@Override
+	public OffHeapMatrix gatherRows(int[] indexes, int offset, int length) {
+
+		final int[] gathered = new int[length];
+
+		for (int r = 0; r < length; r++) {
+			checkRowIndex(indexes[offset + r]);
+			gathered[r] = stored(indexes[offset + r]);
+		}
+		return new OffHeapMatrix(chunks, rowsPerChunk, gathered, 0, length, columns);
+	}
+
+	@Override
+	public Matrix multiplyTransposed(Matrix b, Matrix dest) {
+
+		if (columns != b.columns())
+			throw new DimensionMismatchException(b.columns(), columns);
+		checkDestination(dest, rows, b.rows());
+
+		if (dest.data == b.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		if (dest.columnStride == 1)
+			FeatureGemm.multiplyTransposed(this, b, dest);
+		else
+			dest.copyFrom(multiplyTransposed(b, new Matrix(rows, b.rows())));
+
+		return dest;
+	}
+
+	@Override
+	public Matrix premultiplyTransposed(Matrix a, Matrix dest) {
+
+		if (a.rows() != rows)
+			throw new DimensionMismatchException(rows, a.rows());
+		checkDestination(dest, a.columns(), columns);
+
+		if (dest.data == a.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		if (dest.columnStride == 1)
+			FeatureGemm.premultiplyTransposed(a, this, dest);
+		else
+			dest.copyFrom(premultiplyTransposed(a, new Matrix(a.columns(), columns)));
+
+		return dest;
+	}
+
+	@Override
+	public Matrix toMatrix() {
+
+		Matrix result = new Matrix(rows, columns);
+
+		for (int r = 0; r < rows; r++)
+			readRow(r, 0, columns, result.data, r * columns);
+
+		return result;
+	}
+
+	private int stored(int row) {
+		return storedRows == null ? first + row : storedRows[first + row];
+	}
+
+	private void checkRowIndex(int row) {
+		if (row < 0 || row >= rows)
+			throw new OutOfRangeException(LocalizedFormats.ROW_INDEX, row, 0, rows - 1);
+	}
+
+	private void checkColumnIndex(int column) {
+		if (column < 0 || column >= columns)
+			throw new OutOfRangeException(LocalizedFormats.COLUMN_INDEX, column, 0, columns - 1);
+	}
+
+	private static void checkDestination(Matrix dest, int rows, int columns) {
+		if (dest.rows() != rows || dest.columns() != columns)
+			throw new MatrixDimensionMismatchException(dest.rows(), dest.columns(), rows, columns);
+	}
+
+	private static int rowsPerChunk(int columns) {
+		return (int) Math.max(1L, CHUNK_SIZE / columns);
+	}
+
+	private static FloatBuffer[] allocate(int rows, int columns) {
+
+		if (rows < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, rows);
+		if (columns < 1)
+			throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, columns);
+
+		final int rowsPerChunk = rowsPerChunk(columns);
+		final FloatBuffer[] chunks = new FloatBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+
+		for (int k = 0; k < chunks.length; k++) {
+			int chunkRows = Math.min(rowsPerChunk, rows - k * rowsPerChunk);
+			chunks[k] = ByteBuffer.allocateDirect(Math.multiplyExact(4 * chunkRows, columns)).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		}
+		return chunks;
+	}
+}
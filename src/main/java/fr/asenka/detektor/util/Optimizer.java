@@ -0,0 +1,210 @@
+package fr.asenka.detektor.util;
+
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+
+/**
+ * Update rule of the parameters of a network from their gradients.
+ *
+ * The parameters and the gradients are the flat rows holding all the weights of a network, updated
+ * in place by a primitive loop. The state of an optimizer (velocity, moments) is kept in arrays of
+ * the same size, allocated at the first update and reused afterwards, so an update allocates
+ * nothing. An optimizer holds the state of a single network.
+ */
+public abstract class Optimizer {
+
+	/**
+	 * parameters = parameters - learningRate * gradients
+	 */
+	public static Optimizer sgd() {
+		return new Sgd();
+	}
+
+	/**
+	 * Gradient descent with a velocity accumulating the past gradients
+	 */
+	public static Optimizer momentum(double momentum) {
+		return new Momentum(momentum, false);
+	}
+
+	/**
+	 * Momentum whose gradient is evaluated after the move of the velocity (Nesterov accelerated
+	 * gradient)
+	 */
+	public static Optimizer nesterov(double momentum) {
+		return new Momentum(momentum, true);
+	}
+
+	/**
+	 * Adaptive moment estimation, with the usual decay rates (0.9 and 0.999)
+	 */
+	public static Optimizer adam() {
+		return adam(0.9d, 0.999d, 1e-8d);
+	}
+
+	public static Optimizer adam(double beta1, double beta2, double epsilon) {
+		return new Adam(beta1, beta2, epsilon);
+	}
+
+	/**
+	 * Gradient descent divided by a moving average of the squared gradients, with the usual decay
+	 * rate (0.9)
+	 */
+	public static Optimizer rmsProp() {
+		return rmsProp(0.9d, 1e-8d);
+	}
+
+	public static Optimizer rmsProp(double decay, double epsilon) {
+		return new RmsProp(decay, epsilon);
+	}
+
+	/**
+	 * Updates the parameters in place
+	 *
+	 * @param parameters a row with contiguous entries
+	 * @param gradients a row of the same size with contiguous entries
+	 */
+	public final void update(Matrix parameters, Matrix gradients, double learningRate) {
+
+		if (!parameters.isRow() || parameters.rows() != gradients.rows() || parameters.columns() != gradients.columns())
+			throw new MatrixDimensionMismatchException(gradients.rows(), gradients.columns(), 1, parameters.columns());
+		if (parameters.columnStride != 1 || gradients.columnStride != 1)
+			throw new IllegalArgumentException("The parameters and the gradients must be contiguous");
+
+		update(parameters.data, parameters.offset, gradients.data, gradients.offset, parameters.columns(), learningRate);
+	}
+
+	/**
+	 * Forgets the state of the previous updates
+	 */
+	public abstract void reset();
+
+	protected abstract void update(double[] p, int po, double[] g, int go, int length, double learningRate);
+
+	private static final class Sgd extends Optimizer {
+
+		@Override
+		public void reset() {
+		}
+
+		@Override
+		protected void update(double[] p, int po, double[] g, int go, int length, double learningRate) {
+			for (int i = 0; i < length; i++)
+				p[po + i] -= learningRate * g[go + i];
+		}
+	}
+
+	private static final class Momentum extends Optimizer {
+
+		private final double momentum;
+		private final boolean nesterov;
+		private double[] velocity;
+
+		private Momentum(double momentum, boolean nesterov) {
+			this.momentum = momentum;
+			this.nesterov = nesterov;
+		}
+
+		@Override
+		public void reset() {
+			velocity = null;
+		}
+
+		@Override
+		protected void update(double[] p, int po, double[] g, int go, int length, double learningRate) {
+
+			if (velocity == null || velocity.length != length)
+				velocity = new double[length];
+
+			final double[] v = velocity;
+			final double mu = momentum;
+
+			if (nesterov) {
+				// Tracks the parameters after the look-ahead move, so the gradient is the one at p
+				for (int i = 0; i < length; i++) {
+					final double previous = v[i];
+					v[i] = mu * previous - learningRate * g[go + i];
+					p[po + i] += (1d + mu) * v[i] - mu * previous;
+				}
+			} else {
+				for (int i = 0; i < length; i++) {
+					v[i] = mu * v[i] - learningRate * g[go + i];
+					p[po + i] += v[i];
+				}
+			}
+		}
+	}
+
+	private static final class Adam extends Optimizer {
+
+		private final double beta1, beta2, epsilon;
+		private double[] first, second;
+		private double beta1Power, beta2Power; // beta^t, for the bias correction
+
+		private Adam(double beta1, double beta2, double epsilon) {
+			this.beta1 = beta1;
+			this.beta2 = beta2;
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		public void reset() {
+			first = second = null;
+		}
+
+		@Override
+		protected void update(double[] p, int po, double[] g, int go, int length, double learningRate) {
+
+			if (first == null || first.length != length) {
+				first = new double[length];
+				second = new double[length];
+				beta1Power = beta2Power = 1d;
+			}
+
+			beta1Power *= beta1;
+			beta2Power *= beta2;
+
+			final double[] m = first, v = second;
+			final double b1 = beta1, b2 = beta2, eps = epsilon;
+			final double step = learningRate * Math.sqrt(1d - beta2Power) / (1d - beta1Power);
+
+			for (int i = 0; i < length; i++) {
+				final double gi = g[go + i];
+				m[i] = b1 * m[i] + (1d - b1) * gi;
+				v[i] = b2 * v[i] + (1d - b2) * gi * gi;
+				p[po + i] -= step * m[i] / (Math.sqrt(v[i]) + eps);
+			}
+		}
+	}
+
+	private static final class RmsProp extends Optimizer {
+
+		private final double decay, epsilon;
+		private double[] average;
+
+		private RmsProp(double decay, double epsilon) {
+			this.decay = decay;
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		public void reset() {
+			average = null;
+		}
+
+		@Override
+		protected void update(double[] p, int po, double[] g, int go, int length, double learningRate) {
+
+			if (average == null || average.length != length)
+				average = new double[length];
+
+			final double[] s = average;
+			final double rho = decay, eps = epsilon;
+
+			for (int i = 0; i < length; i++) {
+				final double gi = g[go + i];
+				s[i] = rho * s[i] + (1d - rho) * gi * gi;
+				p[po + i] -= learningRate * gi / (Math.sqrt(s[i]) + eps);
+			}
+		}
+	}
+}
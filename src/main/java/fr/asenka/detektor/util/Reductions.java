@@ -0,0 +1,304 @@
+package fr.asenka.detektor.util;
+
+/**
+ * Reductions (sums, extremes and their indexes) read straight from the storage of a matrix.
+ *
+ * The entries are read as lines (rows or columns, whichever are contiguous; a contiguous matrix is
+ * cut in lines of {@link #CHUNK} entries) and the lines are grouped in chunks reduced in parallel
+ * in the {@link ComputePool}. The chunks do not depend on the parallelism, so neither do the
+ * results. The sums are pairwise within a line and compensated (Neumaier) across the lines and the
+ * chunks, so their error does not grow with the number of entries.
+ */
+final class Reductions {
+
+	private static final int CHUNK = 1 << 14;
+
+	private static final int BLOCK = 128;
+
+	private Reductions() {
+	}
+
+	static double sum(Matrix m) {
+		return sum(new Lines(m), false);
+	}
+
+	static double sumOfSquares(Matrix m) {
+		return sum(new Lines(m), true);
+	}
+
+	static double max(Matrix m) {
+		return extreme(new Lines(m), true);
+	}
+
+	static double min(Matrix m) {
+		return extreme(new Lines(m), false);
+	}
+
+	/**
+	 * @return -sum(y log(h) + (1 - y) log(1 - h)) over all the entries, in a single pass
+	 */
+	static double crossEntropy(Matrix h, Matrix y) {
+
+		final int perChunk = linesPerChunk(h.columns());
+		final int chunks = (h.rows() + perChunk - 1) / perChunk;
+
+		if (chunks == 1)
+			return crossEntropy(h, y, 0, h.rows());
+
+		final double[] partials = new double[chunks];
+
+		ComputePool.forEachRange(0, chunks, 1, (start, end) -> {
+			for (int c = start; c < end; c++)
+				partials[c] = crossEntropy(h, y, c * perChunk, Math.min(h.rows(), (c + 1) * perChunk));
+		});
+
+		return compensatedSum(partials);
+	}
+
+	/**
+	 * dest = the sum of each row of m, as a column
+	 */
+	static Matrix sumByRow(Matrix m, Matrix dest) {
+
+		ComputePool.forEachRange(0, m.rows(), linesPerChunk(m.columns()), (start, end) -> {
+			for (int r = start; r < end; r++)
+				dest.data[dest.offset + r * dest.rowStride] = pairwise(m.data, m.offset + r * m.rowStride, m.columnStride, m.columns(), false);
+		});
+		return dest;
+	}
+
+	/**
+	 * dest = the extreme (or its index when index is true) of each row of m, as a column
+	 */
+	static Matrix extremeByRow(Matrix m, boolean max, boolean index, Matrix dest) {
+
+		ComputePool.forEachRange(0, m.rows(), linesPerChunk(m.columns()), (start, end) -> {
+			for (int r = start; r < end; r++) {
+				final int i = m.offset + r * m.rowStride;
+				final int e = max ? indexMax(m.data, i, m.columnStride, m.columns()) : indexMin(m.data, i, m.columnStride, m.columns());
+				dest.data[dest.offset + r * dest.rowStride] = index ? e : m.data[i + e * m.columnStride];
+			}
+		});
+		return dest;
+	}
+
+	/**
+	 * dest = the extreme (or its index when index is true) of each column of m, as a row
+	 */
+	static Matrix extremeByColumn(Matrix m, boolean max, boolean index, Matrix dest) {
+
+		ComputePool.forEachRange(0, m.columns(), linesPerChunk(m.rows()), (start, end) -> {
+			for (int c = start; c < end; c++) {
+				final int i = m.offset + c * m.columnStride;
+				final int e = max ? indexMax(m.data, i, m.rowStride, m.rows()) : indexMin(m.data, i, m.rowStride, m.rows());
+				dest.data[dest.offset + c * dest.columnStride] = index ? e : m.data[i + e * m.rowStride];
+			}
+		});
+		return dest;
+	}
+
+	/**
+	 * @return the index of the largest value (the last one if there are several)
+	 */
+	static int indexMax(double[] array, int start, int stride, int length) {
+
+		double largest = array[start];
+		int index = 0;
+
+		for (int i = 1; i < length; i++)
+			if (array[start + i * stride] >= largest) {
+				largest = array[start + i * stride];
+				index = i;
+			}
+		return index;
+	}
+
+	/**
+	 * @return the index of the lowest value (the first one if there are several)
+	 */
+	static int indexMin(double[] array, int start, int stride, int length) {
+
+		double lowest = array[start];
+		int index = 0;
+
+		for (int i = 1; i < length; i++)
+			if (array[start + i * stride] < lowest) {
+				lowest = array[start + i * stride];
+				index = i;
+			}
+		return index;
+	}
+
+	private static double sum(Lines lines, boolean squares) {
+
+		final int perChunk = linesPerChunk(lines.length);
+		final int chunks = (lines.count + perChunk - 1) / perChunk;
+
+		if (chunks == 1)
+			return sum(lines, 0, lines.count, squares);
+
+		final double[] partials = new double[chunks];
+
+		ComputePool.forEachRange(0, chunks, 1, (start, end) -> {
+			for (int c = start; c < end; c++)
+				partials[c] = sum(lines, c * perChunk, Math.min(lines.count, (c + 1) * perChunk), squares);
+		});
+
+		return compensatedSum(partials);
+	}
+
+	private static double sum(Lines lines, int start, int end, boolean squares) {
+
+		double sum = 0d, compensation = 0d;
+
+		for (int l = start; l < end; l++) {
+			double value = pairwise(lines.data, lines.start(l), lines.stride, lines.length(l), squares);
+			double t = sum + value;
+			compensation += Math.abs(sum) >= Math.abs(value) ? (sum - t) + value : (value - t) + sum;
+			sum = t;
+		}
+		return sum + compensation;
+	}
+
+	private static double crossEntropy(Matrix h, Matrix y, int startRow, int endRow) {
+
+		final int columns = h.columns();
+		double sum = 0d, compensation = 0d;
+
+		for (int r = startRow; r < endRow; r++) {
+			double value = 0d;
+
+			for (int c = 0, i = h.offset + r * h.rowStride, j = y.offset + r * y.rowStride; c < columns; c++, i += h.columnStride, j += y.columnStride) {
+				final double hi = h.data[i], yi = y.data[j];
+
+				// The terms whose factor is 0 are skipped, so that a saturated output does not give 0 * log(0)
+				if (yi != 0d)
+					value -= yi * Math.log(hi);
+				if (yi != 1d)
+					value -= (1d - yi) * Math.log(1d - hi);
+			}
+
+			double t = sum + value;
+			compensation += Math.abs(sum) >= Math.abs(value) ? (sum - t) + value : (value - t) + sum;
+			sum = t;
+		}
+		return sum + compensation;
+	}
+
+	private static double compensatedSum(double[] values) {
+
+		double sum = 0d, compensation = 0d;
+
+		for (double value : values) {
+			double t = sum + value;
+			compensation += Math.abs(sum) >= Math.abs(value) ? (sum - t) + value : (value - t) + sum;
+			sum = t;
+		}
+		return sum + compensation;
+	}
+
+	private static double pairwise(double[] data, int start, int stride, int length, boolean squares) {
+
+		if (length <= BLOCK) {
+			double sum = 0d;
+
+			if (squares)
+				for (int i = 0, j = start; i < length; i++, j += stride)
+					sum += data[j] * data[j];
+			else
+				for (int i = 0, j = start; i < length; i++, j += stride)
+					sum += data[j];
+
+			return sum;
+		}
+
+		int half = length / 2;
+		return pairwise(data, start, stride, half, squares) + pairwise(data, start + half * stride, stride, length - half, squares);
+	}
+
+	private static double extreme(Lines lines, boolean max) {
+
+		final int perChunk = linesPerChunk(lines.length);
+		final int chunks = (lines.count + perChunk - 1) / perChunk;
+
+		if (chunks == 1)
+			return extreme(lines, 0, lines.count, max);
+
+		final double[] partials = new double[chunks];
+
+		ComputePool.forEachRange(0, chunks, 1, (start, end) -> {
+			for (int c = start; c < end; c++)
+				partials[c] = extreme(lines, c * perChunk, Math.min(lines.count, (c + 1) * perChunk), max);
+		});
+
+		double extreme = partials[0];
+
+		for (double partial : partials)
+			if (max ? Double.compare(partial, extreme) > 0 : Double.compare(partial, extreme) < 0)
+				extreme = partial;
+
+		return extreme;
+	}
+
+	private static double extreme(Lines lines, int start, int end, boolean max) {
+
+		final double[] data = lines.data;
+		final int stride = lines.stride;
+		double extreme = data[lines.start(start)];
+
+		for (int l = start; l < end; l++)
+			for (int i = 0, j = lines.start(l), length = lines.length(l); i < length; i++, j += stride)
+				if (max ? Double.compare(data[j], extreme) > 0 : Double.compare(data[j], extreme) < 0)
+					extreme = data[j];
+
+		return extreme;
+	}
+
+	private static int linesPerChunk(int length) {
+		return Math.max(1, CHUNK / Math.max(1, length));
+	}
+
+	/**
+	 * The entries of a matrix as count lines of equally spaced entries
+	 */
+	private static final class Lines {
+
+		final double[] data;
+		final int offset, count, size, length, lineStride, stride;
+		final boolean flat;
+
+		Lines(Matrix m) {
+
+			this.data = m.data;
+			this.offset = m.offset;
+			this.size = m.rows() * m.columns();
+			this.flat = m.columnStride == 1 && (m.rows() == 1 || m.rowStride == m.columns());
+
+			if (flat) {
+				// Contiguous: cut in lines of CHUNK entries, the last one being shorter
+				this.length = Math.min(size, CHUNK);
+				this.count = (size + length - 1) / length;
+				this.lineStride = length;
+				this.stride = 1;
+			} else if (Math.abs(m.columnStride) <= Math.abs(m.rowStride)) {
+				this.count = m.rows();
+				this.length = m.columns();
+				this.lineStride = m.rowStride;
+				this.stride = m.columnStride;
+			} else {
+				this.count = m.columns();
+				this.length = m.rows();
+				this.lineStride = m.columnStride;
+				this.stride = m.rowStride;
+			}
+		}
+
+		int start(int line) {
+			return offset + line * lineStride;
+		}
+
+		int length(int line) {
+			return flat ? Math.min(length, size - line * length) : length;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package fr.asenka.detektor.util;
+
+/**
+ * Per-thread buffer of doubles, kept between the calls of a product instead of being allocated by
+ * each of them, and grown to the largest size asked.
+ *
+ * A buffer is taken by {@link #acquire(int)} until {@link #release(double[])}: a call nested in the
+ * same thread meanwhile (a task of another product stolen by a thread of the {@link ComputePool}
+ * that waits for its own tasks) gets a new array, so that it cannot overwrite the buffer of the
+ * outer call. The content of an acquired buffer is undefined.
+ */
+final class Scratch {
+
+	private final ThreadLocal<double[]> buffers = new ThreadLocal<>();
+
+	/**
+	 * @return a buffer of at least size doubles, to be released by the same thread
+	 */
+	double[] acquire(int size) {
+
+		double[] buffer = buffers.get();
+
+		if (buffer == null || buffer.length < size)
+			return new double[size];
+
+		buffers.set(null);
+		return buffer;
+	}
+
+	void release(double[] buffer) {
+
+		double[] kept = buffers.get();
+
+		if (kept == null || kept.length < buffer.length)
+			buffers.set(buffer);
+	}
+}
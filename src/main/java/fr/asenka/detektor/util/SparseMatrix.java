@@ -0,0 +1,376 @@
+package fr.asenka.detektor.util;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+
+/**
+ * Matrix of sparse features in a compressed sparse row format: the non-zero entries of each row
+ * are stored consecutively (values and columns, by increasing column) in two arrays. Each row has
+ * its own extent [start, end) in these arrays, so that gathering rows (to shuffle the examples)
+ * only copies their extents and a view on consecutive rows shares all the arrays.
+ *
+ * The products only go through the non-zero entries: for the images, most of whose pixels are 0,
+ * they do a fraction of the work of the dense ones.
+ */
+public final class SparseMatrix implements FeatureMatrix {
+
+	private static final int MIN_BLOCK_ROWS = 64;
+
+	private static final int MAX_PARTIALS = 16;
+
+	private static final Scratch PACKED = new Scratch();
+
+	private static final Scratch ROW = new Scratch();
+
+	private static final Scratch PARTIALS = new Scratch();
+
+	final double[] values;
+	final int[] columnIndexes;
+	final int[] starts;
+	final int[] ends;
+	final int first; // index of the first row of the matrix in starts and ends
+	private final int rows;
+	private final int columns;
+
+	private SparseMatrix(double[] values, int[] columnIndexes, int[] starts, int[] ends, int first, int rows, int columns) {
+		this.values = values;
+		this.columnIndexes = columnIndexes;
+		this.starts = starts;
+		this.ends = ends;
+		this.first = first;
+		this.rows = rows;
+		this.columns = columns;
+	}
+
+	/**
+	 * Keeps the non-zero entries of the matrix
+	 */
+	public SparseMatrix(FeatureMatrix matrix) {
+		this(builder(matrix.rows(), matrix.columns(), count(matrix)));
+
+		final double[] row = new double[columns];
+
+		for (int r = 0; r < rows; r++) {
+			matrix.readRow(r, 0, columns, row, 0);
+			starts[r] = r == 0 ? 0 : ends[r - 1];
+			int i = starts[r];
+
+			for (int c = 0; c < columns; c++)
+				if (row[c] != 0d) {
+					values[i] = row[c];
+					columnIndexes[i++] = c;
+				}
+			ends[r] = i;
+		}
+	}
+
+	private SparseMatrix(Builder builder) {
+		this(builder.values, builder.columnIndexes, builder.starts, builder.ends, 0, builder.rows, builder.columns);
+	}
+
+	@Override
+	public int rows() {
+		return rows;
+	}
+
+	@Override
+	public int columns() {
+		return columns;
+	}
+
+	/**
+	 * @return the number of non-zero entries
+	 */
+	public long nonZeros() {
+
+		long count = 0L;
+
+		for (int r = first; r < first + rows; r++)
+			count += ends[r] - starts[r];
+
+		return count;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+
+		int i = Arrays.binarySearch(columnIndexes, starts[first + row], ends[first + row], column);
+		return i < 0 ? 0d : values[i];
+	}
+
+	@Override
+	public void readRow(int row, int column, int length, double[] destination, int offset) {
+		checkRowIndex(row);
+		checkColumnIndex(column);
+		checkColumnIndex(column + length - 1);
+
+		Arrays.fill(destination, offset, offset + length, 0d);
+
+		for (int i = starts[first + row], end = ends[first + row]; i < end; i++) {
+			final int c = columnIndexes[i] - column;
+			if (c >= 0 && c < length)
+				destination[offset + c] = values[i];
+		}
+	}
+
+	@Override
+	public SparseMatrix rowsView(int startRow, int endRow) {
+		checkRowIndex(startRow);
+		checkRowIndex(endRow);
+		if (endRow < startRow)
+			throw new NumberIsTooSmallException(LocalizedFormats.INITIAL_ROW_AFTER_FINAL_ROW, endRow, startRow, false);
+
+		return new SparseMatrix(values, columnIndexes, starts, ends, first + startRow, endRow - startRow + 1, columns);
+	}
+
+	/**
+	 * @return a matrix sharing the non-zero entries of the given rows, with its own extents
+	 */
+	@Override
+	public SparseMatrix gatherRows(int[] indexes, int offset, int length) {
+
+		final int[] gatheredStarts = new int[length];
+		final int[] gatheredEnds = new int[length];
+
+		for (int r = 0; r < length; r++) {
+			checkRowIndex(indexes[offset + r]);
+			gatheredStarts[r] = starts[first + indexes[offset + r]];
+			gatheredEnds[r] = ends[first + indexes[offset + r]];
+		}
+		return new SparseMatrix(values, columnIndexes, gatheredStarts, gatheredEnds, 0, length, columns);
+	}
+
+	@Override
+	public Matrix multiplyTransposed(Matrix b, Matrix dest) {
+
+		if (columns != b.columns())
+			throw new DimensionMismatchException(b.columns(), columns);
+		checkDestination(dest, rows, b.rows());
+
+		if (dest.data == b.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		final int p = b.rows();
+		final double[] packed = PACKED.acquire(columns * p);
+
+		// b is small (the weights): its transpose is packed so that each non-zero entry of a row
+		// updates the row of dest with a contiguous row of the packed b
+		for (int j = 0; j < p; j++)
+			for (int q = 0, i = b.offset + j * b.rowStride; q < columns; q++, i += b.columnStride)
+				packed[q * p + j] = b.data[i];
+
+		final double[] cd = dest.data;
+		final int cs = dest.columnStride;
+
+		ComputePool.forEachRange(0, rows, MIN_BLOCK_ROWS, (start, end) -> {
+			final double[] row = ROW.acquire(p);
+
+			for (int r = start; r < end; r++) {
+				Arrays.fill(row, 0, p, 0d);
+
+				for (int i = starts[first + r], e = ends[first + r]; i < e; i++) {
+					final double v = values[i];
+					final int bq = columnIndexes[i] * p;
+
+					for (int j = 0; j < p; j++)
+						row[j] += v * packed[bq + j];
+				}
+
+				for (int j = 0, ci = dest.offset + r * dest.rowStride; j < p; j++, ci += cs)
+					cd[ci] = row[j];
+			}
+			ROW.release(row);
+		});
+		PACKED.release(packed);
+		return dest;
+	}
+
+	@Override
+	public Matrix premultiplyTransposed(Matrix a, Matrix dest) {
+
+		if (a.rows() != rows)
+			throw new DimensionMismatchException(rows, a.rows());
+		checkDestination(dest, a.columns(), columns);
+
+		if (dest.data == a.data)
+			throw new IllegalArgumentException("The destination of a product must not share the storage of an operand");
+
+		final int p = a.columns();
+		final int partials = Math.max(1, Math.min(MAX_PARTIALS, rows / MIN_BLOCK_ROWS));
+		final int size = columns * p;
+		final double[] transposed = PARTIALS.acquire(partials * size);
+
+		// Each non-zero entry (r, q) adds a row of a to the row q of the transpose of dest. The rows
+		// are split in a number of blocks that only depends on their count, each summed in its own
+		// partial transpose (a slice of the scratch), so the result does not depend on the
+		// parallelism
+		ComputePool.forEachRange(0, partials, 1, (start, end) -> {
+			for (int t = start; t < end; t++) {
+				final int offset = t * size;
+				final int r1 = (int) ((long) rows * (t + 1) / partials);
+				Arrays.fill(transposed, offset, offset + size, 0d);
+
+				for (int r = (int) ((long) rows * t / partials); r < r1; r++) {
+					final int ai = a.offset + r * a.rowStride;
+
+					for (int i = starts[first + r], e = ends[first + r]; i < e; i++) {
+						final double v = values[i];
+						final int tq = offset + columnIndexes[i] * p;
+
+						for (int j = 0, k = ai; j < p; j++, k += a.columnStride)
+							transposed[tq + j] += v * a.data[k];
+					}
+				}
+			}
+		});
+
+		// The partials are summed in the first one
+		for (int t = 1; t < partials; t++)
+			for (int i = 0, k = t * size; i < size; i++, k++)
+				transposed[i] += transposed[k];
+
+		for (int j = 0; j < p; j++)
+			for (int q = 0, ci = dest.offset + j * dest.rowStride; q < columns; q++, ci += dest.columnStride)
+				dest.data[ci] = transposed[q * p + j];
+
+		PARTIALS.release(transposed);
+		return dest;
+	}
+
+	@Override
+	public Matrix toMatrix() {
+
+		Matrix result = new Matrix(rows, columns);
+
+		for (int r = 0; r < rows; r++)
+			for (int i = starts[first + r], e = ends[first + r]; i < e; i++)
+				result.data[r * columns + columnIndexes[i]] = values[i];
+
+		return result;
+	}
+
+	private void checkRowIndex(int row) {
+		if (row < 0 || row >= rows)
+			throw new OutOfRangeException(LocalizedFormats.ROW_INDEX, row, 0, rows - 1);
+	}
+
+	private void checkColumnIndex(int column) {
+		if (column < 0 || column >= columns)
+			throw new OutOfRangeException(LocalizedFormats.COLUMN_INDEX, column, 0, columns - 1);
+	}
+
+	private static void checkDestination(Matrix dest, int rows, int columns) {
+		if (dest.rows() != rows || dest.columns() != columns)
+			throw new MatrixDimensionMismatchException(dest.rows(), dest.columns(), rows, columns);
+	}
+
+	private static int count(FeatureMatrix matrix) {
+
+		final double[] row = new double[matrix.columns()];
+		long count = 0L;
+
+		for (int r = 0; r < matrix.rows(); r++) {
+			matrix.readRow(r, 0, row.length, row, 0);
+			for (double value : row)
+				if (value != 0d)
+					count++;
+		}
+		return Math.toIntExact(count);
+	}
+
+	/**
+	 * @return the matrix of the given non-zero entries, the row r being stored from ends[r - 1] (0
+	 *         for the first row) to ends[r] (exclusive) in values and columnIndexes
+	 */
+	static SparseMatrix of(double[] values, int[] columnIndexes, int[] ends, int columns) {
+
+		final int[] starts = new int[ends.length];
+
+		for (int r = 1; r < ends.length; r++)
+			starts[r] = ends[r - 1];
+
+		return new SparseMatrix(values, columnIndexes, starts, ends, 0, ends.length, columns);
+	}
+
+	static Builder builder(int rows, int columns, int capacity) {
+		return new Builder(rows, columns, capacity);
+	}
+
+	/**
+	 * Builds a sparse matrix row by row, e.g. while the features are decoded from a file
+	 */
+	static final class Builder {
+
+		private final int rows;
+		private final int columns;
+		private final int[] starts;
+		private final int[] ends;
+		private double[] values;
+		private int[] columnIndexes;
+		private int size;
+		private int row;
+
+		private Builder(int rows, int columns, int capacity) {
+
+			if (rows < 1)
+				throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, rows);
+			if (columns < 1)
+				throw new NotStrictlyPositiveException(LocalizedFormats.DIMENSION, columns);
+
+			this.rows = rows;
+			this.columns = columns;
+			this.starts = new int[rows];
+			this.ends = new int[rows];
+			this.values = new double[Math.max(1, capacity)];
+			this.columnIndexes = new int[values.length];
+		}
+
+		/**
+		 * Appends the non-zero levels of the next row, multiplied by scale
+		 */
+		Builder addRow(byte[] levels, int offset, double scale) {
+
+			if (row == rows)
+				throw new OutOfRangeException(LocalizedFormats.ROW_INDEX, row, 0, rows - 1);
+
+			starts[row] = size;
+
+			for (int c = 0; c < columns; c++) {
+				final int level = levels[offset + c] & 0xFF;
+
+				if (level != 0) {
+					if (size == values.length) {
+						int capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * size);
+						values = Arrays.copyOf(values, capacity);
+						columnIndexes = Arrays.copyOf(columnIndexes, capacity);
+					}
+					values[size] = level * scale;
+					columnIndexes[size++] = c;
+				}
+			}
+			ends[row++] = size;
+			return this;
+		}
+
+		/**
+		 * @return the matrix, whose rows not added yet are empty
+		 */
+		SparseMatrix build() {
+
+			for (; row < rows; row++)
+				starts[row] = ends[row] = size;
+
+			values = Arrays.copyOf(values, size);
+			columnIndexes = Arrays.copyOf(columnIndexes, size);
+			return new SparseMatrix(this);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package fr.asenka.detektor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import fr.asenka.detektor.util.Activation;
+import fr.asenka.detektor.util.ComputePool;
+import fr.asenka.detektor.util.Matrix;
+
+class DataParallelTrainerTest {
+
+	// Not a multiple of the number of workers, so the shards have different sizes
+	private static final int FEATURES = 10, CLASSES = 3, HIDDEN = 5, ROWS = 301, WORKERS = 4;
+
+	private final Matrix X = Matrix.random(ROWS, FEATURES, 0d, 1d);
+
+	private final Matrix y = X.columns(0, 0).applyInPlace(x -> Math.floor(x * CLASSES));
+
+	@Test
+	void testFullBatchTraining() {
+
+		OneLayerNeuralNetwork reference = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		OneLayerNeuralNetwork network = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		network.parameters.copyFrom(reference.parameters);
+
+		int parallelism = ComputePool.getParallelism();
+
+		try {
+			ComputePool.setParallelism(WORKERS);
+			DataParallelTrainer trainer = new DataParallelTrainer(network, WORKERS);
+
+			double[] costs = trainer.train(3);
+			double[] expectedCosts = reference.train(3);
+
+			assertParametersEqual(reference, network);
+			for (int i = 0; i < costs.length; i++)
+				assertEquals(expectedCosts[i], costs[i], 0.0000000001d);
+		} finally {
+			ComputePool.setParallelism(parallelism);
+		}
+	}
+
+	@Test
+	void testMiniBatchSteps() {
+
+		int[] sizes = {FEATURES, HIDDEN, 4, CLASSES};
+		Activation[] activations = {Activation.SIGMOID, Activation.TANH};
+		MultiLayerNeuralNetwork reference = new MultiLayerNeuralNetwork(sizes, activations, 1d, X, y);
+		MultiLayerNeuralNetwork network = new MultiLayerNeuralNetwork(sizes, activations, 1d, X, y);
+		network.parameters.copyFrom(reference.parameters);
+
+		int parallelism = ComputePool.getParallelism();
+
+		try {
+			ComputePool.setParallelism(WORKERS);
+			DataParallelTrainer trainer = new DataParallelTrainer(network, WORKERS);
+
+			// The same batches in the same order, the last one smaller than the others
+			for (int first = 0; first < ROWS; first += 50) {
+				int last = Math.min(first + 50, ROWS) - 1;
+
+				trainer.step(X.rowsView(first, last), reference.Y.rowsView(first, last), false);
+
+				reference.feedForward(X.rowsView(first, last));
+				reference.backPropagation(reference.Y.rowsView(first, last));
+				reference.gradientDescent();
+			}
+			assertParametersEqual(reference, network);
+		} finally {
+			ComputePool.setParallelism(parallelism);
+		}
+	}
+
+	private static void assertParametersEqual(NeuralNetwork expected, NeuralNetwork actual) {
+		for (int i = 0; i < expected.parameters.columns(); i++)
+			assertEquals(expected.parameters.get(0, i), actual.parameters.get(0, i), 0.0000000001d);
+	}
+}
@@ -0,0 +1,128 @@
+package fr.asenka.detektor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import fr.asenka.detektor.util.Activation;
+import fr.asenka.detektor.util.ComputePool;
+import fr.asenka.detektor.util.FeatureMatrix;
+import fr.asenka.detektor.util.FeatureStorage;
+import fr.asenka.detektor.util.Matrix;
+
+class InferenceEngineTest {
+
+	// More rows than a chunk and more features than a panel, neither a multiple of the block sizes
+	private static final int FEATURES = 150, CLASSES = 4, HIDDEN = 7, ROWS = 603, THREADS = 4;
+
+	// Levels of pixels, exactly representable in every storage
+	private final Matrix X = Matrix.random(ROWS, FEATURES, -200d, 256d).applyInPlace(x -> Math.max(0d, Math.floor(x)) / 255d);
+
+	private final Matrix y = Matrix.random(ROWS, 1, 0d, CLASSES).applyInPlace(Math::floor);
+
+	@Test
+	void testPredict() throws Exception {
+
+		OneLayerNeuralNetwork network = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		InferenceEngine engine = network.compile();
+		int parallelism = ComputePool.getParallelism();
+
+		try {
+			for (FeatureStorage storage : FeatureStorage.values()) {
+				FeatureMatrix features = storage.convert(X);
+				Matrix expected = forwardPass(network, features);
+
+				for (int p : new int[] {1, 4}) {
+					ComputePool.setParallelism(p);
+					assertEquals(expected, engine.predict(features), storage.name());
+
+					// Several threads sharing the engine
+					for (Matrix predictions : inThreads(() -> engine.predict(features)))
+						assertEquals(expected, predictions, storage.name());
+				}
+			}
+		} finally {
+			ComputePool.setParallelism(parallelism);
+		}
+	}
+
+	@Test
+	void testPredictMultiLayer() {
+
+		MultiLayerNeuralNetwork network = new MultiLayerNeuralNetwork(new int[] {FEATURES, HIDDEN, 5, CLASSES}, new Activation[] {Activation.SIGMOID, Activation.TANH}, 1d, X, y);
+
+		assertEquals(forwardPass(network, X), network.compile().predict(X));
+	}
+
+	@Test
+	void testClassify() throws Exception {
+
+		OneLayerNeuralNetwork network = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		InferenceEngine engine = network.compile();
+		Matrix expected = forwardPass(network, X);
+
+		// Each thread classifies all the examples, one at a time, with its own scratch buffers
+		for (Matrix classes : inThreads(() -> classifyEach(engine, false)))
+			assertEquals(expected, classes);
+		for (Matrix classes : inThreads(() -> classifyEach(engine, true)))
+			assertEquals(expected, classes);
+	}
+
+	private Matrix classifyEach(InferenceEngine engine, boolean asPixels) {
+
+		Matrix classes = new Matrix(ROWS, 1);
+		double[] features = new double[FEATURES];
+		byte[] pixels = new byte[FEATURES];
+
+		for (int r = 0; r < ROWS; r++) {
+			for (int c = 0; c < FEATURES; c++) {
+				features[c] = X.get(r, c);
+				pixels[c] = (byte) Math.round(X.get(r, c) * 255d);
+			}
+			classes.set(r, 0, asPixels ? engine.classify(pixels) : engine.classify(features));
+		}
+		return classes;
+	}
+
+	/**
+	 * @return the class of highest output of the network for each example
+	 */
+	private static Matrix forwardPass(NeuralNetwork network, FeatureMatrix features) {
+
+		network.feedForward(features);
+		Matrix predictions = new Matrix(features.rows(), 1);
+
+		for (int r = 0; r < features.rows(); r++) {
+			int index = 0;
+			for (int c = 1; c < network.H.columns(); c++)
+				if (network.H.get(r, c) >= network.H.get(r, index))
+					index = c;
+			predictions.set(r, 0, index);
+		}
+		return predictions;
+	}
+
+	private static <T> List<T> inThreads(Callable<T> task) throws Exception {
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<T>> futures = new ArrayList<>();
+		List<T> results = new ArrayList<>();
+
+		try {
+			for (int t = 0; t < THREADS; t++)
+				futures.add(executor.submit(task));
+			for (Future<T> future : futures)
+				results.add(future.get());
+		} finally {
+			executor.shutdown();
+		}
+		return results;
+	}
+}
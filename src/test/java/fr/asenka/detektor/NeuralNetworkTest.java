@@ -0,0 +1,117 @@
+package fr.asenka.detektor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.junit.jupiter.api.Test;
+
+import fr.asenka.detektor.util.Activation;
+import fr.asenka.detektor.util.Matrix;
+
+class NeuralNetworkTest {
+
+	private static final int FEATURES = 4, CLASSES = 3, HIDDEN = 5, ROWS = 20;
+
+	private static final double EPSILON = 0.00001d, DELTA = 0.0000001d;
+
+	private final Matrix X = Matrix.random(ROWS, FEATURES, 0d, 1d);
+
+	private final Matrix y = X.columns(0, 0).applyInPlace(x -> Math.floor(x * CLASSES));
+
+	@Test
+	void testOneLayerGradients() {
+		assertGradients(new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y));
+	}
+
+	@Test
+	void testMultiLayerGradients() {
+		
+		int[] sizes = {FEATURES, HIDDEN, 4, 4, CLASSES};
+		Activation[] activations = {Activation.SIGMOID, Activation.TANH, Activation.SIGMOID};
+		
+		assertGradients(new MultiLayerNeuralNetwork(sizes, activations, 1d, X, y));
+	}
+
+	@Test
+	void testMultiLayerWithOneHiddenLayer() {
+
+		OneLayerNeuralNetwork reference = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		MultiLayerNeuralNetwork network = new MultiLayerNeuralNetwork(new int[] {FEATURES, HIDDEN, CLASSES}, new Activation[] {Activation.SIGMOID}, 1d, X, y);
+		network.parameters.copyFrom(reference.parameters);
+
+		reference.feedForward(X);
+		reference.backPropagation(reference.Y);
+		network.feedForward(X);
+		network.backPropagation(network.Y);
+
+		assertEquals(reference.H, network.H);
+		assertEquals(reference.gradients, network.gradients);
+
+		reference.train(3);
+		network.train(3);
+
+		assertEquals(reference.parameters, network.parameters);
+	}
+
+	@Test
+	void testCostInterval() {
+
+		OneLayerNeuralNetwork network = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		network.setCostInterval(3);
+
+		// Every third iteration and the last one
+		double[] costs = network.train(7);
+		double[] epochCosts = network.trainMiniBatch(4, 6);
+
+		assertEquals(8, costs.length);
+		for (int i = 0; i < costs.length; i++)
+			assertEquals(i == 0 || i == 3 || i == 6 || i == 7, !Double.isNaN(costs[i]), "iteration " + i);
+		for (int i = 0; i < epochCosts.length; i++)
+			assertEquals(i == 0 || i == 3 || i == 4, !Double.isNaN(epochCosts[i]), "epoch " + i);
+
+		assertThrows(NotStrictlyPositiveException.class, () -> network.setCostInterval(0));
+	}
+
+	@Test
+	void testCost() {
+
+		OneLayerNeuralNetwork network = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		network.feedForward(X);
+
+		// -1/m sum(Y .* log(H) + (1 - Y) .* log(1 - H)), in two passes
+		Matrix H = network.H, Y = network.Y;
+		Matrix terms = Y.multiplyEachEntry(H.applyOnEach(Math::log))
+				.add(Y.multiply(-1d).add(1d).multiplyEachEntry(H.multiply(-1d).add(1d).applyOnEach(Math::log)));
+
+		assertEquals(-Matrix.sumAll(terms) / ROWS, NeuralNetwork.cost(H, Y, ROWS), DELTA);
+	}
+
+	/**
+	 * Compares the gradients of the backpropagation with the central differences of the cost
+	 * (regularization included) for each parameter
+	 */
+	private static void assertGradients(NeuralNetwork network) {
+
+		network.feedForward(network.X);
+		network.backPropagation(network.Y);
+		Matrix gradients = network.gradients.copy();
+
+		for (int i = 0; i < network.parameters.columns(); i++) {
+			final double value = network.parameters.get(0, i);
+
+			network.parameters.set(0, i, value + EPSILON);
+			double plus = cost(network);
+			network.parameters.set(0, i, value - EPSILON);
+			double minus = cost(network);
+			network.parameters.set(0, i, value);
+
+			assertEquals((plus - minus) / (2d * EPSILON), gradients.get(0, i), DELTA, "parameter " + i);
+		}
+	}
+
+	private static double cost(NeuralNetwork network) {
+		network.feedForward(network.X);
+		return NeuralNetwork.cost(network.H, network.Y, network.m) + network.regularization();
+	}
+}
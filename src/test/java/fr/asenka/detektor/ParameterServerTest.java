@@ -0,0 +1,117 @@
+package fr.asenka.detektor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import fr.asenka.detektor.util.Matrix;
+
+class ParameterServerTest {
+
+	private static final int FEATURES = 10, CLASSES = 3, HIDDEN = 5, ROWS = 300, WORKERS = 3;
+
+	private final Matrix X = Matrix.random(ROWS, FEATURES, 0d, 1d);
+
+	private final Matrix y = X.columns(0, 0).applyInPlace(x -> Math.floor(x * CLASSES));
+
+	@Test
+	void testSynchronousTraining() throws Exception {
+
+		OneLayerNeuralNetwork reference = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		OneLayerNeuralNetwork master = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+		master.parameters.copyFrom(reference.parameters);
+
+		try (ParameterServer server = new ParameterServer(master, WORKERS, 0, 0).start()) {
+			assertTrue(server.getAddress().isLoopbackAddress());
+
+			// One batch per shard and per epoch: the same updates as full batch gradient descent
+			List<DistributedTrainer> workers = train(server, ROWS / WORKERS, 2);
+
+			reference.train(2);
+
+			assertEquals(3, server.getVersion());
+			for (DistributedTrainer worker : workers)
+				assertEquals(3, worker.getVersion());
+
+			for (int i = 0; i < master.parameters.columns(); i++)
+				assertEquals(reference.parameters.get(0, i), master.parameters.get(0, i), 0.00001d);
+		}
+	}
+
+	@Test
+	void testBoundedStalenessTraining() throws Exception {
+
+		OneLayerNeuralNetwork master = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+
+		try (ParameterServer server = new ParameterServer(master, WORKERS, 1, 0).start()) {
+			List<DistributedTrainer> workers = train(server, 10, 4);
+
+			// Each worker pushes 10 batches per epoch
+			assertEquals(WORKERS * 10 * 5, server.getVersion());
+			for (DistributedTrainer worker : workers)
+				assertTrue(worker.getVersion() <= server.getVersion());
+		}
+	}
+
+	@Test
+	void testWorkerFailingBeforeJoining() throws Exception {
+
+		OneLayerNeuralNetwork master = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X, y);
+
+		try (ParameterServer server = new ParameterServer(master, WORKERS + 1, 0, 0).start()) {
+
+			// A worker whose connection is closed in the middle of its header is rejected, so the
+			// others do not wait for it
+			try (Socket socket = new Socket(server.getAddress(), server.getPort())) {
+				OutputStream output = socket.getOutputStream();
+				output.write(new byte[] {0x44, 0x45});
+				output.flush();
+			}
+
+			List<DistributedTrainer> workers = assertTimeoutPreemptively(Duration.ofSeconds(60), () -> train(server, ROWS / WORKERS, 2));
+
+			assertEquals(3, server.getVersion());
+			for (DistributedTrainer worker : workers)
+				assertEquals(3, worker.getVersion());
+		}
+	}
+
+	private List<DistributedTrainer> train(ParameterServer server, int batchSize, int epochs) throws Exception {
+
+		ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+		List<Future<DistributedTrainer>> futures = new ArrayList<>();
+		List<DistributedTrainer> workers = new ArrayList<>();
+
+		try {
+			for (int w = 0; w < WORKERS; w++) {
+				final int first = w * ROWS / WORKERS, last = (w + 1) * ROWS / WORKERS - 1;
+
+				futures.add(executor.submit(() -> {
+					OneLayerNeuralNetwork shard = new OneLayerNeuralNetwork(FEATURES, CLASSES, HIDDEN, 1d, X.rows(first, last), y.rows(first, last));
+
+					try (DistributedTrainer worker = new DistributedTrainer(shard, server.getAddress().getHostAddress(), server.getPort())) {
+						worker.trainMiniBatch(epochs, batchSize);
+						return worker;
+					}
+				}));
+			}
+			for (Future<DistributedTrainer> future : futures)
+				workers.add(future.get());
+
+		} finally {
+			executor.shutdown();
+		}
+		return workers;
+	}
+}
@@ -0,0 +1,169 @@
+package fr.asenka.detektor.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DataSetCacheTest {
+
+	// Mostly zeros (for the sparse format), the other values not representable as floats
+	private final Matrix values = Matrix.random(57, 30, -2d, 1d).applyInPlace(x -> Math.max(0d, x));
+
+	private final Matrix labels = Matrix.random(57, 1, 0d, 10d).applyInPlace(Math::floor);
+
+	@Test
+	void testRoundTrip(@TempDir Path directory) throws IOException {
+
+		DataSetCache cache = new DataSetCache(directory);
+
+		for (FeatureStorage storage : FeatureStorage.values()) {
+			FeatureMatrix features = storage.convert(values);
+
+			cache.store("test", 42L, storage, features, labels);
+			Examples cached = cache.load("test", 42L, storage);
+
+			assertEquals(storage.convert(values).getClass(), cached.getFeatures().getClass(), storage.name());
+			assertEquals(features.toMatrix(), cached.getFeatures().toMatrix(), storage.name());
+			assertEquals(labels, cached.getLabels(), storage.name());
+		}
+	}
+
+	@Test
+	void testDoublesAreNotDowncast(@TempDir Path directory) throws IOException {
+
+		DataSetCache cache = new DataSetCache(directory);
+
+		// A float cache does not serve a double data set, which is stored in its own file
+		cache.store("test", 42L, FeatureStorage.FLOAT, values, labels);
+		assertNull(cache.load("test", 42L, FeatureStorage.DOUBLE));
+
+		cache.store("test", 42L, FeatureStorage.DOUBLE, values, labels);
+		assertEquals(values, cache.load("test", 42L, FeatureStorage.DOUBLE).getFeatures());
+		assertEquals(new FloatMatrix(values).toMatrix(), cache.load("test", 42L, FeatureStorage.FLOAT).getFeatures().toMatrix());
+	}
+
+	@Test
+	void testCompactLayouts(@TempDir Path directory) throws IOException {
+
+		DataSetCache cache = new DataSetCache(directory);
+		int rows = values.rows(), columns = values.columns();
+
+		// The levels and their scale, one byte per feature
+		ByteMatrix levels = new ByteMatrix(values);
+		cache.store("test", 42L, FeatureStorage.UINT8, levels, labels);
+		ByteMatrix cachedLevels = (ByteMatrix) cache.load("test", 42L, FeatureStorage.UINT8).getFeatures();
+
+		assertEquals(DataSetCache.HEADER_SIZE + rows * columns + rows, Files.size(directory.resolve("test.u8.bin")));
+		assertEquals(levels.getScale(), cachedLevels.getScale());
+		for (int r = 0; r < rows; r++)
+			for (int c = 0; c < columns; c++)
+				assertEquals(levels.getLevel(r, c), cachedLevels.getLevel(r, c));
+
+		// The non-zero entries of the rows (gathered in another order), 12 bytes each, and the end of
+		// each row
+		int[] order = new int[rows];
+		for (int r = 0; r < rows; r++)
+			order[r] = rows - 1 - r;
+
+		SparseMatrix sparse = new SparseMatrix(values).gatherRows(order, 0, rows);
+		cache.store("test", 42L, FeatureStorage.SPARSE, sparse, labels);
+		FeatureMatrix cachedSparse = cache.load("test", 42L, FeatureStorage.SPARSE).getFeatures();
+
+		assertEquals(DataSetCache.HEADER_SIZE + 12L * sparse.nonZeros() + 4 * rows + rows, Files.size(directory.resolve("test.csr.bin")));
+		assertEquals(sparse.toMatrix(), cachedSparse.toMatrix());
+	}
+
+	@Test
+	void testColdAndWarmRuns(@TempDir Path directory) throws IOException {
+
+		String previous = System.getProperty("detektor.cache.dir");
+		Path source = Files.write(directory.resolve("source"), new byte[] {1, 2, 3});
+
+		try {
+			for (FeatureStorage storage : FeatureStorage.values()) {
+				System.setProperty("detektor.cache.dir", directory.resolve(storage.name()).toString());
+				TestDataSet cold = new TestDataSet(storage, source);
+				TestDataSet warm = new TestDataSet(storage, source);
+
+				assertEquals(1, cold.loads, storage.name());
+				assertEquals(0, warm.loads, storage.name());
+				assertEquals(cold.getImages(), warm.getImages(), storage.name());
+				assertEquals(cold.getLabels(), warm.getLabels(), storage.name());
+			}
+		} finally {
+			if (previous == null)
+				System.clearProperty("detektor.cache.dir");
+			else
+				System.setProperty("detektor.cache.dir", previous);
+		}
+	}
+
+	@Test
+	void testInvalidation(@TempDir Path directory) throws IOException {
+
+		DataSetCache cache = new DataSetCache(directory);
+		Path source = Files.write(directory.resolve("source"), new byte[] {1, 2, 3});
+		long key = DataSetCache.key("scale=1", source);
+
+		assertEquals(key, DataSetCache.key("scale=1", source));
+		cache.store("test", key, FeatureStorage.FLOAT, values, labels);
+		assertNotNull(cache.load("test", key, FeatureStorage.FLOAT));
+
+		// Another option or another content of a source gives another key, whose data is not cached
+		assertNotEquals(key, DataSetCache.key("scale=2", source));
+		Files.write(source, new byte[] {1, 2, 4});
+		long changed = DataSetCache.key("scale=1", source);
+
+		assertNotEquals(key, changed);
+		assertNull(cache.load("test", changed, FeatureStorage.FLOAT));
+
+		// A truncated file is ignored
+		Path file = directory.resolve("test.f32.bin");
+		Files.write(file, Arrays.copyOf(Files.readAllBytes(file), 100));
+		assertNull(cache.load("test", key, FeatureStorage.FLOAT));
+	}
+
+	private final class TestDataSet extends DataSet {
+
+		private final Path source;
+
+		private int loads;
+
+		TestDataSet(FeatureStorage storage, Path source) {
+			super(storage);
+			this.source = source;
+			load();
+		}
+
+		@Override
+		protected void loadData() {
+			// Called by the constructor of DataSet, before the source is set
+		}
+
+		private void load() {
+			try {
+				loadCached("test", "scale=1", () -> {
+					loads++;
+					X = storage.convert(values);
+					y = labels;
+				}, source);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public int getImageSize() {
+			return values.columns();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package fr.asenka.detektor.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import fr.asenka.detektor.OneLayerNeuralNetwork;
+
+class DataSetTest {
+
+	@Test
+	void testExamplesStayAlignedWithTheDataSet() {
+		
+		DataSet ds = new DataSet() {
+			
+			@Override
+			protected void loadData() {
+				// The label of each example is its first feature
+				X = Matrix.random(100, 8, 0d, 1d);
+				y = ((Matrix) X).columns(0, 0).applyInPlace(x -> Math.floor(x * 3d));
+			}
+			
+			@Override
+			public int getImageSize() {
+				return 8;
+			}
+		};
+		Matrix features = ds.getImages();
+		Matrix labels = ds.getLabels().copy();
+		Examples training = ds.examples(20, 79);
+		
+		OneLayerNeuralNetwork network = new OneLayerNeuralNetwork(8, 3, 4, 0.5d, training.getFeatures(), training.getLabels());
+		network.trainMiniBatch(3, 7);
+		
+		// Training shuffles the order of the batches, not the rows of the data set
+		assertEquals(features, ds.getImages());
+		assertEquals(labels, ds.getLabels());
+		assertEquals(features.rows(20, 79), training.getFeatures().toMatrix());
+	}
+}
@@ -0,0 +1,129 @@
+package fr.asenka.detektor.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IdxFileTest {
+
+	// More bytes than a chunk of the gzipped files (64 KB)
+	private static final int ITEMS = 100, ROWS = 28, COLUMNS = 25, SIZE = ITEMS * ROWS * COLUMNS;
+
+	// Neither a multiple of the item size nor of the window
+	private static final int WINDOW_SIZE = 4099, READ_SIZE = 1000;
+
+	private final byte[] data = random(SIZE);
+
+	@Test
+	void testHeader(@TempDir Path directory) throws IOException {
+
+		for (String name : new String[] {"images", "images.gz"}) {
+			Path file = write(directory.resolve(name), MnistReader.IMAGES_MAGIC_NUMBER, new int[] {ITEMS, ROWS, COLUMNS}, data);
+
+			try (IdxFile idx = IdxFile.open(file, MnistReader.IMAGES_MAGIC_NUMBER, "an images")) {
+				assertEquals(MnistReader.IMAGES_MAGIC_NUMBER, idx.magicNumber());
+				assertEquals(ITEMS, idx.dimension(0));
+				assertEquals(COLUMNS, idx.dimension(2));
+				assertEquals(ROWS * COLUMNS, idx.itemSize());
+			}
+			assertThrows(IOException.class, () -> IdxFile.open(file, MnistReader.LABELS_MAGIC_NUMBER, "a labels"));
+		}
+
+		// Not gzipped, truncated in the middle of the header
+		Path plain = Files.write(directory.resolve("plain.gz"), Files.readAllBytes(directory.resolve("images")));
+		Path truncated = Files.write(directory.resolve("truncated"), new byte[] {0, 0, 8, 3, 0, 0});
+
+		assertThrows(IOException.class, () -> IdxFile.open(plain, MnistReader.IMAGES_MAGIC_NUMBER, "an images"));
+		assertThrows(EOFException.class, () -> IdxFile.open(truncated, MnistReader.IMAGES_MAGIC_NUMBER, "an images"));
+	}
+
+	@Test
+	void testRead(@TempDir Path directory) throws IOException {
+
+		for (String name : new String[] {"images", "images.gz"}) {
+			Path file = write(directory.resolve(name), MnistReader.IMAGES_MAGIC_NUMBER, new int[] {ITEMS, ROWS, COLUMNS}, data);
+
+			// Reads of READ_SIZE bytes, across the windows of the mapped file
+			try (IdxFile idx = IdxFile.open(file, MnistReader.IMAGES_MAGIC_NUMBER, "an images", WINDOW_SIZE)) {
+				byte[] bytes = new byte[SIZE];
+
+				for (int offset = 0; offset < SIZE; offset += READ_SIZE)
+					idx.read(bytes, offset, Math.min(READ_SIZE, SIZE - offset));
+
+				assertArrayEquals(data, bytes, name);
+				assertThrows(EOFException.class, () -> idx.read(bytes, 0, 1));
+			}
+		}
+	}
+
+	@Test
+	void testReadUnsigned(@TempDir Path directory) throws IOException {
+
+		final double scale = 1d / 255d;
+		double[] expected = new double[SIZE];
+		float[] expectedFloats = new float[SIZE];
+
+		for (int i = 0; i < SIZE; i++) {
+			expected[i] = (data[i] & 0xFF) * scale;
+			expectedFloats[i] = (float) expected[i];
+		}
+
+		for (String name : new String[] {"images", "images.gz"}) {
+			Path file = write(directory.resolve(name), MnistReader.IMAGES_MAGIC_NUMBER, new int[] {ITEMS, ROWS, COLUMNS}, data);
+
+			// In one read, across the chunks of the gzipped file and the windows of the mapped one
+			try (IdxFile idx = IdxFile.open(file, MnistReader.IMAGES_MAGIC_NUMBER, "an images", WINDOW_SIZE)) {
+				double[] values = new double[SIZE + 1];
+				idx.readUnsigned(values, 1, SIZE, scale);
+
+				for (int i = 0; i < SIZE; i++)
+					assertEquals(expected[i], values[i + 1], name);
+			}
+
+			try (IdxFile idx = IdxFile.open(file, MnistReader.IMAGES_MAGIC_NUMBER, "an images", WINDOW_SIZE)) {
+				float[] values = new float[SIZE];
+
+				for (int offset = 0; offset < SIZE; offset += READ_SIZE)
+					idx.readUnsigned(values, offset, Math.min(READ_SIZE, SIZE - offset), scale);
+
+				assertArrayEquals(expectedFloats, values, name);
+				assertThrows(EOFException.class, () -> idx.readUnsigned(values, 0, 1, scale));
+			}
+		}
+	}
+
+	/**
+	 * Writes an IDX file, gzipped when its name ends with .gz
+	 */
+	static Path write(Path file, int magicNumber, int[] dimensions, byte[] data) throws IOException {
+
+		try (OutputStream output = Files.newOutputStream(file);
+				DataOutputStream stream = new DataOutputStream(file.toString().endsWith(".gz") ? new GZIPOutputStream(output) : output)) {
+
+			stream.writeInt(magicNumber);
+			for (int dimension : dimensions)
+				stream.writeInt(dimension);
+			stream.write(data);
+		}
+		return file;
+	}
+
+	static byte[] random(int size) {
+
+		byte[] bytes = new byte[size];
+		new Random(42L).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -3,12 +3,27 @@ package fr.asenka.detektor.util;
 
 import static fr.asenka.detektor.util.Matrix.binaryMatrix;
 import static fr.asenka.detektor.util.Matrix.sum;
+import static fr.asenka.detektor.util.Matrix.sumAll;
+import static fr.asenka.detektor.util.Matrix.sumOfSquares;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.OutOfRangeException;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class MatrixTest {
 	
@@ -109,6 +124,189 @@ class MatrixTest {
 		assertEquals(expectedM2xM1, m2.multiply(m1));
 	}
 	
+	@Test
+	void testMultiplyLarge() {
+		
+		Matrix wide = Matrix.random(10, 3000, -1d, 1d);
+		Matrix tall = Matrix.random(3000, 21, -1d, 1d);
+		Matrix square = Matrix.random(301, 257, -1d, 1d);
+		Matrix other = Matrix.random(257, 150, -1d, 1d);
+		
+		int parallelism = ComputePool.getParallelism();
+		
+		try {
+			for (int p : new int[] {1, 4}) {
+				ComputePool.setParallelism(p);
+				assertEqualsWithDelta(new Matrix(wide.toRealMatrix().multiply(tall.toRealMatrix())), wide.multiply(tall));
+				assertEqualsWithDelta(new Matrix(square.toRealMatrix().multiply(other.toRealMatrix())), square.multiply(other));
+			}
+		} finally {
+			ComputePool.setParallelism(parallelism);
+		}
+	}
+	
+	@Test
+	void testReplacedPool() {
+		
+		int parallelism = ComputePool.getParallelism();
+		
+		try {
+			ComputePool.setParallelism(4);
+			ForkJoinPool acquired = ComputePool.acquire();
+			
+			// The pool of a running kernel is only shut down once the kernel returns
+			ComputePool.setParallelism(2);
+			assertFalse(acquired.isShutdown());
+			assertEquals(42, (int) acquired.invoke(ForkJoinTask.adapt(() -> 42)));
+			
+			ComputePool.release(acquired);
+			assertTrue(acquired.isShutdown());
+		} finally {
+			ComputePool.setParallelism(parallelism);
+		}
+	}
+	
+	@Test
+	void testFloatMatrix() {
+		
+		// Values exactly representable as floats, so the products must match the double ones
+		Matrix features = Matrix.random(403, 300, 0d, 256d).applyInPlace(Math::floor).scaleInPlace(1d / 256d);
+		Matrix weights = Matrix.random(25, 300, -1d, 1d);
+		Matrix errors = Matrix.random(403, 25, -1d, 1d);
+		FloatMatrix floats = new FloatMatrix(features);
+		
+		assertEquals(features, floats.toMatrix());
+		assertEquals(features.get(402, 299), floats.rowsView(400, 402).get(2, 299));
+		
+		int parallelism = ComputePool.getParallelism();
+		
+		try {
+			for (int p : new int[] {1, 4}) {
+				ComputePool.setParallelism(p);
+				assertEqualsWithDelta(features.multiplyTransposed(weights), floats.multiplyTransposed(weights, new Matrix(403, 25)));
+				assertEqualsWithDelta(errors.transposeMultiply(features), floats.premultiplyTransposed(errors, new Matrix(25, 300)));
+				assertEqualsWithDelta(errors.transposeMultiply(features), floats.premultiplyTransposed(errors, new Matrix(300, 25).transposedView()));
+			}
+		} finally {
+			ComputePool.setParallelism(parallelism);
+		}
+	}
+	
+	@Test
+	void testByteMatrix() {
+		
+		Matrix pixels = Matrix.random(203, 300, 0d, 256d).applyInPlace(Math::floor);
+		pixels.set(0, 0, 255d);
+		Matrix features = pixels.multiply(1d / 255d);
+		Matrix weights = Matrix.random(25, 300, -1d, 1d);
+		Matrix errors = Matrix.random(203, 25, -1d, 1d);
+		ByteMatrix bytes = new ByteMatrix(features);
+		
+		assertEquals(1d / 255d, bytes.getScale(), DELTA);
+		assertEquals((int) pixels.get(202, 299), bytes.rowsView(200, 202).getLevel(2, 299));
+		assertEqualsWithDelta(features, bytes.toMatrix());
+		assertEqualsWithDelta(features.multiplyTransposed(weights), bytes.multiplyTransposed(weights, new Matrix(203, 25)));
+		assertEqualsWithDelta(errors.transposeMultiply(features), bytes.premultiplyTransposed(errors, new Matrix(25, 300)));
+		assertThrows(NumberIsTooSmallException.class, () -> new ByteMatrix(new Matrix("1 -1")));
+	}
+	
+	@Test
+	void testOffHeapMatrix(@TempDir Path directory) throws IOException {
+		
+		Matrix features = Matrix.random(403, 300, 0d, 256d).applyInPlace(Math::floor).scaleInPlace(1d / 256d);
+		Matrix weights = Matrix.random(25, 300, -1d, 1d);
+		Matrix errors = Matrix.random(403, 25, -1d, 1d);
+		Matrix labels = Matrix.random(403, 1, 0d, 10d).applyInPlace(Math::floor);
+		OffHeapMatrix offHeap = new OffHeapMatrix(features);
+		
+		assertEquals(features, offHeap.toMatrix());
+		assertEqualsWithDelta(features.multiplyTransposed(weights), offHeap.multiplyTransposed(weights, new Matrix(403, 25)));
+		assertEqualsWithDelta(errors.transposeMultiply(features), offHeap.premultiplyTransposed(errors, new Matrix(25, 300)));
+		
+		// Mapped read-only from the cache: the rows are gathered through the indexes of the stored rows
+		DataSetCache cache = new DataSetCache(directory);
+		cache.store("test", 42L, FeatureStorage.OFF_HEAP, offHeap, labels);
+		Examples cached = cache.load("test", 42L, FeatureStorage.OFF_HEAP);
+		FeatureMatrix mapped = cached.getFeatures().rowsView(1, 402);
+		
+		assertTrue(mapped instanceof OffHeapMatrix);
+		assertEquals(labels, cached.getLabels());
+		assertEquals(features.get(402, 299), mapped.get(401, 299));
+		
+		int[] indexes = {401, 0, 7};
+		assertEquals(features.gatherRows(new int[] {402, 1, 8}, 0, 3), mapped.gatherRows(indexes, 0, 3).toMatrix());
+		assertEquals(features.get(8, 299), mapped.gatherRows(indexes, 1, 2).rowsView(1, 1).get(0, 299));
+		assertEquals(features, cached.getFeatures().toMatrix());
+		assertThrows(ReadOnlyBufferException.class, () -> ((OffHeapMatrix) mapped).set(0, 0, 1d));
+		assertNull(cache.load("test", 43L, FeatureStorage.OFF_HEAP));
+	}
+	
+	@Test
+	void testSparseMatrix() {
+		
+		// About 80% of zeros, like the pixels of the images
+		Matrix features = Matrix.random(1003, 300, -4d, 1d).applyInPlace(x -> Math.max(0d, x));
+		Matrix weights = Matrix.random(25, 300, -1d, 1d);
+		Matrix errors = Matrix.random(1003, 25, -1d, 1d);
+		SparseMatrix sparse = new SparseMatrix(features);
+		
+		assertEquals(features, sparse.toMatrix());
+		assertEquals(features.get(1002, 299), sparse.rowsView(1000, 1002).get(2, 299));
+		assertTrue(sparse.nonZeros() < 1003 * 300 / 4);
+		
+		int parallelism = ComputePool.getParallelism();
+		
+		try {
+			for (int p : new int[] {1, 4}) {
+				ComputePool.setParallelism(p);
+				assertEqualsWithDelta(features.multiplyTransposed(weights), sparse.multiplyTransposed(weights, new Matrix(1003, 25)));
+				assertEqualsWithDelta(errors.transposeMultiply(features), sparse.premultiplyTransposed(errors, new Matrix(25, 300)));
+				assertEqualsWithDelta(errors.transposeMultiply(features), sparse.premultiplyTransposed(errors, new Matrix(300, 25).transposedView()));
+
+				// In the larger scratch buffers of the previous products
+				assertEqualsWithDelta(features.multiplyTransposed(weights.rowsView(0, 9)), sparse.multiplyTransposed(weights.rowsView(0, 9), new Matrix(1003, 10)));
+				assertEqualsWithDelta(errors.columns(0, 9).transposeMultiply(features), sparse.premultiplyTransposed(errors.columns(0, 9), new Matrix(10, 300)));
+			}
+		} finally {
+			ComputePool.setParallelism(parallelism);
+		}
+		
+		// Gathering rows copies their extents, whatever their number of entries
+		Matrix small = new Matrix("0 1 2 ; 0 0 0 ; 3 0 0");
+		SparseMatrix view = new SparseMatrix(small).rowsView(1, 2);
+		assertEquals(new Matrix("3 0 0 ; 0 0 0 ; 3 0 0"), view.gatherRows(new int[] {1, 0, 1}, 0, 3).toMatrix());
+	}
+	
+	@Test
+	void testInPlace() {
+		
+		Matrix m = new Matrix("1 1 1 ; 1 1 1");
+		Matrix other = new Matrix("0 1 0 ; 2 2 2");
+		
+		assertEquals(new Matrix("1 2 1 ; 3 3 3"), m.addInPlace(other));
+		assertEquals(new Matrix("2 4 2 ; 6 6 6"), m.scaleInPlace(2d));
+		assertEquals(new Matrix("0 4 0 ; 12 12 12"), m.hadamardInPlace(other));
+		assertEquals(new Matrix("0 1 0 ; 6 6 6"), m.axpy(-3d, other));
+		assertEquals(new Matrix("-1 -1 -1 ; 3 3 3"), m.subtractInPlace(other).addInPlace(-1d));
+		assertEquals(new Matrix("-1 -1 -1 ; 3 3 3"), m);
+	}
+	
+	@Test
+	void testDestination() {
+		
+		Matrix m1 = new Matrix("1 2 3 ; 4 5 6");
+		Matrix m2 = new Matrix("2 4 ; 3 0 ; 1 0");
+		Matrix dest = Matrix.ones(3, 3);
+		
+		assertEquals(m1.add(m1), Matrix.add(m1, m1, new Matrix(2, 3)));
+		assertEquals(m1.multiplyEachEntry(m1), Matrix.hadamard(m1, m1, new Matrix(2, 3)));
+		assertEquals(m2.multiply(m1), Matrix.multiply(m2, m1, dest));
+		assertEquals(m2.multiply(m1), dest);
+		assertEquals(m1.transpose().multiply(m1), Matrix.transposeMultiply(m1, m1, dest));
+		assertEquals(m2.multiply(m2.transpose()), Matrix.multiplyTransposed(m2, m2, dest.transposedView()));
+		assertEquals(new Matrix("1 0 ; 0 1"), Matrix.subtract(m1.columns(0, 1).rows(0, 1), m1.subMatrixView(0, 1, 0, 1), Matrix.identity(2)).addInPlace(Matrix.identity(2)));
+	}
+	
 	@Test
 	void testScalarAdd() {
 		
@@ -136,6 +334,49 @@ class MatrixTest {
 		assertEquals(expected, m.multiply(10d));
 	}
 	
+	@Test
+	void testTransposedMultiply() {
+		
+		Matrix m1 = new Matrix("1 2 3 ; 4 5 6");
+		Matrix m2 = new Matrix("2 3 1 ; 4 0 0");
+		Matrix m3 = new Matrix("1 2 ; 0 1");
+		
+		assertEquals(m1.multiply(m2.transpose()), m1.multiplyTransposed(m2));
+		assertEquals(m3.transpose().multiply(m1), m3.transposeMultiply(m1));
+		assertEquals(m1.transpose().multiply(m3), m1.transposedView().multiply(m3));
+	}
+	
+	@Test
+	void testTransposedView() {
+		
+		Matrix m = new Matrix("1 2 3 ; 4 5 6");
+		Matrix view = m.transposedView();
+		
+		assertEquals(m.transpose(), view);
+		assertEquals(new Matrix("5 7 9"), sum(view.transpose()));
+		
+		view.set(2, 0, 10d);
+		assertEquals(10d, m.get(0, 2), DELTA);
+	}
+	
+	@Test
+	void testPower() {
+		
+		Matrix m = new Matrix("1 1 ; 1 0");
+		
+		assertEquals(new Matrix("1 0 ; 0 1"), m.power(0));
+		assertEquals(new Matrix("8 5 ; 5 3"), m.power(5));
+	}
+	
+	@Test
+	void testRealMatrixAdapter() {
+		
+		Matrix m = new Matrix("1 2 3 ; 4 5 6");
+		
+		assertEquals(m, new Matrix(m.toRealMatrix()));
+		assertEquals(m.norm(), m.toRealMatrix().getNorm(), DELTA);
+	}
+	
 	@Test
 	void testMultiplyEachEntry() {
 		
@@ -156,6 +397,80 @@ class MatrixTest {
 		assertEquals(expected, m.subMatrix(1, 1));
 	}
 	
+	@Test
+	void testRowsView() {
+		
+		Matrix m = new Matrix("1 2 ; 3 4 ; 5 6 ; 7 8");
+		Matrix view = m.rowsView(1, 2);
+		
+		assertEquals(new Matrix("3 4 ; 5 6"), view);
+		
+		view.set(0, 1, 10d);
+		assertEquals(10d, m.get(1, 1), DELTA);
+		
+		m.columnsView(1, 1).fill(0d);
+		m.rowView(3).scaleInPlace(2d);
+		assertEquals(new Matrix("1 0 ; 3 0 ; 5 0 ; 14 0"), m);
+		assertEquals(new Matrix("1 ; 3 ; 5 ; 14"), m.columnView(0));
+		
+		m.rows(0, 3).fill(1d); // a copy
+		assertEquals(14d, m.get(3, 0), DELTA);
+	}
+	
+	@Test
+	void testReshapedView() {
+		
+		Matrix m = new Matrix("1 2 3 4 5 6 7 8");
+		Matrix view = m.reshapedView(2, 2, 3);
+		
+		assertEquals(new Matrix("3 4 5 ; 6 7 8"), view);
+		
+		view.set(1, 0, 10d);
+		assertEquals(10d, m.get(0, 5), DELTA);
+		assertThrows(OutOfRangeException.class, () -> m.reshapedView(3, 2, 3));
+		assertThrows(IllegalStateException.class, () -> m.transposedView().reshapedView(0, 2, 2));
+	}
+	
+	@Test
+	void testBatchIterator() {
+		
+		// Mostly zeros, so that the sparse storage has rows of different lengths
+		Matrix values = Matrix.random(103, 20, -2d, 1d).applyInPlace(x -> Math.max(0d, x));
+		Matrix labels = new Matrix(103, 1);
+		
+		for (int r = 0; r < 103; r++)
+			labels.set(r, 0, r);
+		
+		for (FeatureStorage storage : FeatureStorage.values()) {
+			FeatureMatrix features = storage.convert(values);
+			Matrix expected = features.toMatrix();
+			Matrix labelsBefore = labels.copy();
+			BatchIterator batches = new BatchIterator(features, labels, 10, new Random(42L));
+			boolean[] seen = new boolean[103];
+			int count = 0;
+			
+			while (batches.hasNext()) {
+				Examples batch = batches.next();
+				
+				for (int r = 0; r < batch.size(); r++) {
+					int row = (int) batch.getLabels().get(r, 0);
+					seen[row] = true;
+					count++;
+					
+					for (int c = 0; c < 20; c++)
+						assertEquals(expected.get(row, c), batch.getFeatures().get(r, c), storage.name());
+				}
+			}
+			assertEquals(103, count);
+			for (boolean s : seen)
+				assertTrue(s);
+			
+			// Neither matrix was shuffled in place
+			assertEquals(expected, features.toMatrix(), storage.name());
+			assertEquals(labelsBefore, labels);
+		}
+	}
+	
 	@Test
 	void testMin() {
 		
@@ -203,6 +518,31 @@ class MatrixTest {
 		assertEquals(expected, m.applyOnEach(d -> d * 2 + 0.25));
 	}
 	
+	@Test
+	void testApplyInPlace() {
+		
+		Matrix m = new Matrix("1 1 ; 2 2");
+		Matrix expected = new Matrix("2.25 2.25 ; 4.25 4.25");
+		
+		assertEquals(expected, m.applyInPlace(d -> d * 2 + 0.25));
+		assertEquals(expected, m);
+	}
+	
+	@Test
+	void testActivation() {
+		
+		Matrix z = new Matrix("-2 0 ; 0.5 3");
+		
+		for (Activation f : Activation.values()) {
+			Matrix a = f.applyInPlace(z.copy());
+			Matrix delta = f.multiplyByDerivativeInPlace(Matrix.ones(2, 2), a);
+			
+			assertEquals(z.applyOnEach(f.function()), a);
+			assertEquals(a.applyOnEach(f.derivative()), delta);
+		}
+		assertEquals(new Matrix("0 0 ; 0.5 3"), Activation.RELU.applyInPlace(z));
+	}
+	
 	@Test
 	void testBinaryMatrix() {
 		
@@ -253,6 +593,55 @@ class MatrixTest {
 		assertTrue(sum(sum(m)).isScalar());
 	}
 
+	@Test
+	void testReductions() {
+		
+		Matrix m = Matrix.random(700, 300, -1d, 1d);
+		m.set(123, 45, 5d);
+		m.set(456, 7, -5d);
+		Matrix t = m.transpose();
+		int parallelism = ComputePool.getParallelism();
+		
+		try {
+			double sum = sumAll(m);
+			
+			for (int p : new int[] {1, 4}) {
+				ComputePool.setParallelism(p);
+				assertEquals(sum, sumAll(m));
+				assertEquals(sum, sumAll(t.transposedView()), DELTA);
+				assertEquals(sumAll(m.copy().applyInPlace(x -> x * x)), sumOfSquares(m), DELTA);
+				assertEquals(5d, m.max(), 0d);
+				assertEquals(-5d, t.transposedView().min(), 0d);
+				assertEquals(45d, m.indexMaxByRow().get(123, 0), 0d);
+				assertEquals(456d, m.indexMinByColumn().get(0, 7), 0d);
+				assertEquals(t.maxByColumn(), m.maxByRow().transpose());
+				assertEquals(sum, sumAll(Matrix.sumByRow(m)), DELTA);
+			}
+		} finally {
+			ComputePool.setParallelism(parallelism);
+		}
+		
+		// Compensated: 0.1 is not exact, a naive sum of a million of them is off by about 1e-6
+		assertEquals(100000d, sumAll(new Matrix(1000, 1000, 0.1d)), 1e-9);
+	}
+	
+	@Test
+	void testCrossEntropy() {
+		
+		Matrix h = Matrix.random(3000, 10, 0.01d, 0.99d);
+		Matrix y = Matrix.random(3000, 10, 0d, 1d).applyInPlace(x -> x < 0.5d ? 0d : 1d);
+		double expected = 0d;
+		
+		for (int r = 0; r < h.rows(); r++)
+			for (int c = 0; c < h.columns(); c++)
+				expected -= y.get(r, c) * Math.log(h.get(r, c)) + (1d - y.get(r, c)) * Math.log(1d - h.get(r, c));
+		
+		assertEquals(expected, Matrix.crossEntropy(h, y), 1e-6);
+		
+		// A saturated output matching its label costs nothing instead of 0 * log(0)
+		assertEquals(0d, Matrix.crossEntropy(new Matrix("1 0"), new Matrix("1 0")), 0d);
+	}
+	
 	@Test
 	void testIterator() {
 		
@@ -283,4 +672,14 @@ class MatrixTest {
 		 assertEquals(m1, m1.copy());
 		 assertEquals(m2, m2.copy());
 	 }
+	 
+	private void assertEqualsWithDelta(Matrix expected, Matrix actual) {
+		
+		assertEquals(expected.rows(), actual.rows());
+		assertEquals(expected.columns(), actual.columns());
+		
+		for (int r = 0; r < expected.rows(); r++)
+			for (int c = 0; c < expected.columns(); c++)
+				assertEquals(expected.get(r, c), actual.get(r, c), DELTA);
+	}
 }
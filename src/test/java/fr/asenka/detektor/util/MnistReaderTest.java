@@ -0,0 +1,91 @@
+package fr.asenka.detektor.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MnistReaderTest {
+
+	// More pixels than a chunk of the gzipped files (64 KB)
+	private static final int IMAGES = 101, SIDE = 28, IMAGE_SIZE = SIDE * SIDE;
+
+	private static final double SCALE = 1d / 255d;
+
+	private final byte[] pixels = IdxFileTest.random(IMAGES * IMAGE_SIZE);
+
+	private final byte[] labels = new byte[IMAGES];
+
+	MnistReaderTest() {
+
+		// Mostly blank images like the real ones, so that the sparse rows have different lengths
+		for (int i = 0; i < pixels.length; i++)
+			if (i % 7 > 1)
+				pixels[i] = 0;
+		pixels[1] = (byte) 255;
+
+		for (int i = 0; i < IMAGES; i++)
+			labels[i] = (byte) (i % 10);
+	}
+
+	@Test
+	void testImages(@TempDir Path directory) throws IOException {
+
+		Path plain = IdxFileTest.write(directory.resolve("images"), MnistReader.IMAGES_MAGIC_NUMBER, new int[] {IMAGES, SIDE, SIDE}, pixels);
+		Path gzipped = IdxFileTest.write(directory.resolve("images.gz"), MnistReader.IMAGES_MAGIC_NUMBER, new int[] {IMAGES, SIDE, SIDE}, pixels);
+		Matrix expected = new Matrix(IMAGES, IMAGE_SIZE);
+
+		for (int r = 0; r < IMAGES; r++)
+			for (int c = 0; c < IMAGE_SIZE; c++)
+				expected.set(r, c, (pixels[r * IMAGE_SIZE + c] & 0xFF) * SCALE);
+
+		assertEquals(expected, MnistReader.getImagesMatrix(plain, SCALE));
+		assertEquals(expected, MnistReader.getImagesMatrix(gzipped, SCALE));
+
+		for (FeatureStorage storage : FeatureStorage.values()) {
+			FeatureMatrix fromPlain = MnistReader.getImagesMatrix(plain, SCALE, storage);
+			FeatureMatrix fromGzipped = MnistReader.getImagesMatrix(gzipped, SCALE, storage);
+
+			assertEquals(storage.convert(expected).getClass(), fromPlain.getClass(), storage.name());
+			assertEquals(fromPlain.toMatrix(), fromGzipped.toMatrix(), storage.name());
+
+			// Exact in double, rounded to the nearest float otherwise
+			Matrix features = fromPlain.toMatrix();
+			for (int r = 0; r < IMAGES; r++)
+				for (int c = 0; c < IMAGE_SIZE; c++)
+					assertEquals(expected.get(r, c), features.get(r, c), storage == FeatureStorage.FLOAT || storage == FeatureStorage.OFF_HEAP ? 0.0000001d : 0d, storage.name());
+		}
+
+		List<int[][]> images = MnistReader.getImages(gzipped);
+		assertEquals(IMAGES, images.size());
+		assertEquals(pixels[IMAGES * IMAGE_SIZE - 1] & 0xFF, images.get(IMAGES - 1)[SIDE - 1][SIDE - 1]);
+		assertEquals(255, images.get(0)[0][1]);
+	}
+
+	@Test
+	void testLabels(@TempDir Path directory) throws IOException {
+
+		int[] expected = new int[IMAGES];
+		for (int i = 0; i < IMAGES; i++)
+			expected[i] = labels[i];
+
+		for (String name : new String[] {"labels", "labels.gz"}) {
+			Path file = IdxFileTest.write(directory.resolve(name), MnistReader.LABELS_MAGIC_NUMBER, new int[] {IMAGES}, labels);
+			Matrix matrix = MnistReader.getLabelsMatrix(file);
+
+			assertArrayEquals(expected, MnistReader.getLabels(file), name);
+			assertEquals(IMAGES, matrix.rows());
+			for (int i = 0; i < IMAGES; i++)
+				assertEquals(expected[i], matrix.get(i, 0), name);
+
+			// A labels file is not an images file
+			assertThrows(IOException.class, () -> MnistReader.getImagesMatrix(file, SCALE));
+		}
+	}
+}
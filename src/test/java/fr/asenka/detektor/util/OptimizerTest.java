@@ -0,0 +1,58 @@
+package fr.asenka.detektor.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.apache.commons.math3.linear.MatrixDimensionMismatchException;
+import org.junit.jupiter.api.Test;
+
+class OptimizerTest {
+
+	private final double DELTA = 0.000001d;
+
+	@Test
+	void testSgd() {
+
+		Matrix parameters = new Matrix("1 2 3");
+		Optimizer.sgd().update(parameters, new Matrix("1 -2 0.5"), 0.5d);
+
+		assertEquals(new Matrix("0.5 3 2.75"), parameters);
+	}
+
+	@Test
+	void testMomentum() {
+
+		Matrix parameters = new Matrix("1");
+		Optimizer momentum = Optimizer.momentum(0.5d);
+
+		momentum.update(parameters, new Matrix("1"), 0.1d); // v = -0.1
+		momentum.update(parameters, new Matrix("1"), 0.1d); // v = -0.15
+
+		assertEquals(0.75d, parameters.get(0, 0), DELTA);
+	}
+
+	@Test
+	void testConvergence() {
+
+		Matrix target = new Matrix("1 -2 3 0.5 -0.25");
+		Optimizer[] optimizers = { Optimizer.sgd(), Optimizer.momentum(0.9d), Optimizer.nesterov(0.9d), Optimizer.adam(), Optimizer.rmsProp() };
+		double[] learningRates = { 0.1d, 0.02d, 0.02d, 0.01d, 0.001d };
+
+		for (int o = 0; o < optimizers.length; o++) {
+			Matrix parameters = new Matrix(1, 5);
+			Matrix gradients = new Matrix(1, 5);
+
+			// Minimizes |parameters - target|^2 / 2
+			for (int i = 0; i < 5000; i++)
+				optimizers[o].update(parameters, Matrix.subtract(parameters, target, gradients), learningRates[o]);
+
+			for (int c = 0; c < 5; c++)
+				assertEquals(target.get(0, c), parameters.get(0, c), 0.01d, "optimizer " + o);
+		}
+	}
+
+	@Test
+	void testDimensions() {
+		assertThrows(MatrixDimensionMismatchException.class, () -> Optimizer.adam().update(new Matrix(1, 3), new Matrix(1, 4), 0.1d));
+	}
+}